@@ -6,11 +6,13 @@
 package jp.ac.titech.c.psg.ast2j;
 
 import java.io.BufferedInputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.List;
 
 /**
  * The main class of AST2J.
@@ -26,12 +28,15 @@ public class AST2J {
     private static final String VERSION = "0.5a";
 
     private static void showUsage () {
-        System.err.println("Usage: ast2j [ -options ] [ file ]");
+        System.err.println("Usage: ast2j [ -options ] [ file ... ]");
         System.err.println("where options include:");
-        System.err.println("  -t -target <dir>  specify target directory");
-        System.err.println("  -d -debug         turn on debug mode");
-        System.err.println("  -v -version       print system version");
-        System.err.println("  -h -help          print this help message");
+        System.err.println("  -t -target <dir>    write into dir following the packages");
+        System.err.println("  -m -manifest <file> write the hashes of the output files");
+        System.err.println("  -s -stable          leave the date out of the output files");
+        System.err.println("  -c -classes         write class files instead of source files");
+        System.err.println("  -d -debug           turn on debug mode");
+        System.err.println("  -v -version         print system version");
+        System.err.println("  -h -help            print this help message");
         System.exit(0);
     }
 
@@ -43,8 +48,47 @@ public class AST2J {
         System.exit(0);
     }
 
+    /**
+     * Generates the classes for the AST definitions in grammar,
+     * compiles them in memory, and returns a class loader that loads
+     * them by their binary names (such as "p.Foo"), delegating to the
+     * class loader of AST2J.  Throws an IllegalArgumentException if
+     * the generated classes do not compile.
+     **/
+    public static ClassLoader load (String grammar) throws SyntaxError {
+        return load(grammar, AST2J.class.getClassLoader());
+    }
+
+    /**
+     * The same as load(grammar) but delegating to parent.
+     **/
+    public static ClassLoader load (String grammar, ClassLoader parent) 
+        throws SyntaxError {
+        TransAST transAST = new TransAST();
+        JavaFileObjectSink sink = new JavaFileObjectSink();
+        transAST.setSink(sink);
+        try {
+            new Parser(grammar.toCharArray()).parse(transAST);
+        } catch (IOException e) {
+            // an unterminated comment or string
+            throw new SyntaxError(e.getMessage());
+        }
+        try {
+            transAST.finishUp();
+        } catch (IOException e) {
+            // not thrown by the sink
+            throw new UncheckedIOException(e);
+        }
+        return new MemoryClassLoader
+            (MemoryCompiler.compile(sink.getFileObjects()), parent);
+    }
+
     public static void main (String[] args) {
         boolean debugmode = false;
+        boolean stablemode = false;
+        boolean classmode = false;
+        String manifest = null;
+        String target = null;
         int i = 0;
         while (i < args.length) {
             String arg = args[i];
@@ -54,12 +98,22 @@ public class AST2J {
                 showVersion();
             else if (arg.equals("-d") || arg.equals("-debug"))
                 debugmode = true;
+            else if (arg.equals("-s") || arg.equals("-stable"))
+                stablemode = true;
+            else if (arg.equals("-c") || arg.equals("-classes"))
+                classmode = true;
+            else if (arg.equals("-m") || arg.equals("-manifest")) {
+                i++;
+                if (i < args.length)
+                    manifest = args[i];
+                else
+                    showUsage();
+            }
             else if (arg.equals("-t") || arg.equals("-target")) {
                 i++;
-                if (i < args.length) {
-                    System.err.println("This feature is not yet implemented. Sorry!");
-                    System.exit(1);
-                } else
+                if (i < args.length)
+                    target = args[i];
+                else
                     showUsage();
             }
             else break;
@@ -70,37 +124,42 @@ public class AST2J {
         if (debugmode) 
             transAST.setDebug();
         else {
-            Date date = GregorianCalendar.getInstance().getTime();
-            transAST.setMessage("// This file was generated by " + NAME + 
-                                " (" + VERSION + ")" +
-                                " on " + date);
+            String message = "// This file was generated by " + NAME + 
+                " (" + VERSION + ")";
+            if (!stablemode) {
+                Date date = GregorianCalendar.getInstance().getTime();
+                message = message + " on " + date;
+            }
+            transAST.setMessage(message);
         }
+        DirectorySink sink = (target != null)
+            ? new DirectorySink(Paths.get(target), true)
+            : new DirectorySink(Paths.get(""), false);
+        transAST.setSink(sink);
+        if (classmode) 
+            transAST.setClassSink(sink);
+        Loader loader = new Loader();
         if (i >= args.length) {
             transAST.setSource("stdin");
-            try {
-                new Parser (new BufferedInputStream(System.in)).
-                    parse(transAST);
-                transAST.finishUp();
-            } catch (Exception e) {
-                System.err.println(e.toString());
-                System.exit(1);
-            }
+            loader.load(new BufferedInputStream(System.in));
         } else {
-            transAST.setSource(args[i]);
-            InputStream in = null;
-            try {
-                in = new FileInputStream(args[i]);
-                new Parser (new BufferedInputStream(in)).parse(transAST);
-                transAST.finishUp();
-            } catch (Exception e) {
-                System.err.println(e.toString());
-                System.exit(1);
-            }
-            finally {
-                if (in != null) 
-                    try { in.close(); } catch (IOException e) {}
+            List<String> files = Arrays.asList(args).subList(i, args.length);
+            transAST.setSource(String.join(" ", files));
+            loader.load(files);
+        }
+        if (loader.reportErrors(System.err))
+            System.exit(1);
+        loader.replay(transAST);
+        try {
+            transAST.finishUp();
+            if (manifest != null && !debugmode) 
+                sink.writeManifest(Paths.get(manifest));
+        } catch (IOException | SyntaxError e) {
+            System.err.println(e.toString());
+            for (Throwable t : e.getSuppressed()) {
+                System.err.println(t.toString());
             }
+            System.exit(1);
         }
     }
 }
-
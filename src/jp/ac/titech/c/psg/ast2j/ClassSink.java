@@ -0,0 +1,21 @@
+/*
+ * AST2J : A simple visitor generator for Java
+ * Copyright (c) 2000-2017 Takuo Watanabe <takuo@acm.org>
+ */
+
+package jp.ac.titech.c.psg.ast2j;
+
+import java.io.IOException;
+
+/**
+ * Where the generated class files go.  writeClass may be called from
+ * several threads at once.
+ **/
+public interface ClassSink {
+    /**
+     * Stores the class file of class name (a simple name) in package
+     * pkg (null for the unnamed package).
+     **/
+    public void writeClass (String pkg, String name, byte[] bytes)
+        throws IOException;
+}
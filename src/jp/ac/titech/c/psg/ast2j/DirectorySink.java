@@ -0,0 +1,126 @@
+/*
+ * AST2J : A simple visitor generator for Java
+ * Copyright (c) 2000-2017 Takuo Watanabe <takuo@acm.org>
+ */
+
+package jp.ac.titech.c.psg.ast2j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes the source or class files into a directory, either all in
+ * the directory itself or in subdirectories following the package
+ * names.  A file is written only if its contents differ from those of
+ * the existing file, so that an unchanged file keeps its timestamp and
+ * needs no recompilation.
+ **/
+public class DirectorySink implements OutputSink, ClassSink {
+    private Path dir;
+    private boolean layout;
+
+    // SHA-256 of the files written, by their paths relative to dir
+    private ConcurrentHashMap<String, String> hashes =
+        new ConcurrentHashMap<String, String>();
+
+    /**
+     * Creates a sink for dir.  If layout is true, the file of a class
+     * in package p.q goes into dir/p/q.
+     **/
+    public DirectorySink (Path dir, boolean layout) {
+        this.dir = dir;
+        this.layout = layout;
+    }
+
+    public void write (String pkg, String filename, CharSequence contents) 
+        throws IOException {
+        writeFile(pkg, filename, 
+                  Charset.defaultCharset().encode(CharBuffer.wrap(contents)));
+    }
+
+    public void writeClass (String pkg, String name, byte[] bytes) 
+        throws IOException {
+        writeFile(pkg, name + ".class", ByteBuffer.wrap(bytes));
+    }
+
+    private void writeFile (String pkg, String filename, ByteBuffer bytes) 
+        throws IOException {
+        String name = filename;
+        if (layout && pkg != null) 
+            name = pkg.replace('.', '/') + "/" + filename;
+        hashes.put(name, sha256(bytes));
+        store(dir.resolve(name), bytes);
+    }
+
+    /**
+     * Writes a manifest of the files written so far, one line of the
+     * form "<sha256> <path>" for each, sorted by the path.  The
+     * manifest itself is left alone if unchanged.
+     **/
+    public void writeManifest (Path manifest) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        String nl = System.lineSeparator();
+        TreeMap<String, String> sorted = new TreeMap<String, String>(hashes);
+        for (Map.Entry<String, String> e : sorted.entrySet()) {
+            sb.append(e.getValue()).append(' ').append(e.getKey()).append(nl);
+        }
+        store(manifest, Charset.defaultCharset().encode(CharBuffer.wrap(sb)));
+    }
+
+    // Writes bytes to file with a single write unless the file already
+    // has the same contents
+    private static void store (Path file, ByteBuffer bytes) 
+        throws IOException {
+        int size = bytes.remaining();
+        if (Files.isRegularFile(file) && Files.size(file) == size) {
+            ByteBuffer old = ByteBuffer.allocate(size);
+            FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                while (old.hasRemaining() && ch.read(old) >= 0) {}
+            } finally {
+                ch.close();
+            }
+            old.flip();
+            if (old.equals(bytes)) return;
+        }
+        if (file.getParent() != null)
+            Files.createDirectories(file.getParent());
+        FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE,
+                                          StandardOpenOption.CREATE,
+                                          StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            while (bytes.hasRemaining()) {
+                ch.write(bytes);
+            }
+        } finally {
+            ch.close();
+        }
+    }
+
+    private static String sha256 (ByteBuffer bytes) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder sb = new StringBuilder();
+        md.update(bytes.duplicate());
+        for (byte b : md.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * AST2J : A simple visitor generator for Java
+ * Copyright (c) 2000-2017 Takuo Watanabe <takuo@acm.org>
+ */
+
+package jp.ac.titech.c.psg.ast2j;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+
+/**
+ * Makes the files into source JavaFileObjects, which can be given to
+ * a javax.tools.JavaCompiler as they are.
+ **/
+public class JavaFileObjectSink implements OutputSink {
+
+    // A source file held in memory
+    private static class Source extends SimpleJavaFileObject {
+        private String contents;
+
+        Source (String path, String contents) {
+            super(URI.create("string:///" + path), JavaFileObject.Kind.SOURCE);
+            this.contents = contents;
+        }
+
+        public CharSequence getCharContent (boolean ignoreEncodingErrors) {
+            return contents;
+        }
+    }
+
+    private ConcurrentSkipListMap<String, JavaFileObject> files =
+        new ConcurrentSkipListMap<String, JavaFileObject>();
+
+    public JavaFileObjectSink () {}
+
+    public void write (String pkg, String filename, 
+                       CharSequence contents) {
+        String path = MemorySink.pathOf(pkg, filename);
+        files.put(path, new Source(path, contents.toString()));
+    }
+
+    /**
+     * Returns the files written so far, sorted by their paths.
+     **/
+    public List<JavaFileObject> getFileObjects () {
+        return new ArrayList<JavaFileObject>(files.values());
+    }
+}
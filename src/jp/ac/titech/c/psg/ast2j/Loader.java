@@ -0,0 +1,221 @@
+/*
+ * AST2J : A simple visitor generator for Java
+ * Copyright (c) 2000-2017 Takuo Watanabe <takuo@acm.org>
+ */
+
+package jp.ac.titech.c.psg.ast2j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Loads a grammar made of several files.  The files given and those
+ * they include or import are parsed in parallel on the common
+ * fork-join pool, each file once, and then passed to a TransAST in
+ * order.
+ *
+ *     #include "file"   the commands and definitions of file are
+ *                       handled as if they were written in place
+ *     #import "file"    only the aliases and the supertypes defined
+ *                       in file are taken; no class is generated for
+ *                       it and its commands are ignored
+ *
+ * A relative file name is resolved against the directory of the file
+ * that includes it.  A file is included (or imported) only once.
+ **/
+class Loader {
+
+    // A file and the result of parsing it
+    private class Unit extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final String name;
+        final Path path;
+        private InputStream in;
+        ParseResult result = null;
+        List<SyntaxError> errors = null;
+        Exception failure = null;
+
+        Unit (String name, Path path, InputStream in) {
+            this.name = name;
+            this.path = path;
+            this.in = in;
+        }
+
+        protected void compute () {
+            try {
+                Parser parser = (in != null)
+                    ? new Parser(in) : new Parser(path);
+                parser.setRecovery(true);
+                result = parser.parse();
+                errors = parser.getErrors();
+            } catch (Exception e) {
+                failure = e;
+                return;
+            } finally {
+                in = null;
+            }
+            ArrayList<Unit> units = new ArrayList<Unit>();
+            for (int i = 0; i < result.size(); i++) {
+                ParseResult.Item item = result.get(i);
+                if (isInclude(item)) {
+                    Unit unit = newUnit(resolve(item.getArg()));
+                    if (unit != null) units.add(unit);
+                }
+            }
+            invokeAll(units);
+        }
+
+        String resolve (String file) {
+            Path dir = Paths.get(name).getParent();
+            return (dir != null) ? dir.resolve(file).toString() : file;
+        }
+    }
+
+    private ConcurrentHashMap<Path, Unit> units =
+        new ConcurrentHashMap<Path, Unit>();
+    private ArrayList<Unit> roots = new ArrayList<Unit>();
+
+    public Loader () {}
+
+    /**
+     * Parses the files and all the files they include or import.
+     **/
+    public void load (List<String> files) {
+        final ArrayList<Unit> tops = new ArrayList<Unit>();
+        for (String file : files) {
+            Unit unit = newUnit(file);
+            if (unit != null) tops.add(unit);
+        }
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                protected void compute () {
+                    invokeAll(tops);
+                }
+            });
+        roots.addAll(tops);
+    }
+
+    /**
+     * Parses the standard input and all the files it includes or
+     * imports, relative to the current directory.
+     **/
+    public void load (InputStream in) {
+        Unit unit = new Unit("stdin", null, in);
+        ForkJoinPool.commonPool().invoke(unit);
+        roots.add(unit);
+    }
+
+    // Returns the unit for file if it is new, otherwise null
+    private Unit newUnit (String file) {
+        Path path = Paths.get(file);
+        Unit unit = new Unit(file, path, null);
+        Path key = path.toAbsolutePath().normalize();
+        return (units.putIfAbsent(key, unit) == null) ? unit : null;
+    }
+
+    private Unit getUnit (String file) {
+        return units.get(Paths.get(file).toAbsolutePath().normalize());
+    }
+
+    private static boolean isInclude (ParseResult.Item item) {
+        return item.isCommand() &&
+            (item.getCommand().equalsIgnoreCase("include") ||
+             item.getCommand().equalsIgnoreCase("import"));
+    }
+
+    /**
+     * Prints the errors found in the files to err, each prefixed with
+     * the file name if there are more than one file, and returns
+     * whether there were any.
+     **/
+    public boolean reportErrors (PrintStream err) {
+        int count = units.size();
+        for (Unit unit : roots) {
+            if (unit.path == null) count++;
+        }
+        boolean prefix = count > 1;
+        boolean found = false;
+        HashSet<Unit> seen = new HashSet<Unit>();
+        for (Unit unit : roots) {
+            found |= reportErrors(unit, err, prefix, seen);
+        }
+        return found;
+    }
+
+    private boolean reportErrors (Unit unit, PrintStream err,
+                                  boolean prefix, HashSet<Unit> seen) {
+        if (unit == null || !seen.add(unit))
+            return false;
+        String head = prefix ? unit.name + ": " : "";
+        if (unit.failure != null) {
+            err.println(head + unit.failure.toString());
+            return true;
+        }
+        boolean found = false;
+        for (SyntaxError e : unit.errors) {
+            err.println(head + e.toString());
+            found = true;
+        }
+        for (int i = 0; i < unit.result.size(); i++) {
+            ParseResult.Item item = unit.result.get(i);
+            if (isInclude(item)) {
+                Unit sub = getUnit(unit.resolve(item.getArg()));
+                found |= reportErrors(sub, err, prefix, seen);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Passes the commands and definitions of the files to trans, in
+     * order, following the includes and imports.
+     **/
+    public void replay (TransAST trans) {
+        HashSet<Unit> included = new HashSet<Unit>();
+        HashSet<Unit> imported = new HashSet<Unit>();
+        for (Unit unit : roots) {
+            replay(unit, false, trans, included, imported);
+        }
+    }
+
+    private void replay (Unit unit, boolean importing, TransAST trans,
+                         HashSet<Unit> included, HashSet<Unit> imported) {
+        if (unit == null || unit.result == null || included.contains(unit))
+            return;
+        if (importing) {
+            if (!imported.add(unit)) return;
+        } else {
+            included.add(unit);
+        }
+        ParseResult result = unit.result;
+        for (int i = 0; i < result.size(); i++) {
+            ParseResult.Item item = result.get(i);
+            if (isInclude(item)) {
+                Unit sub = getUnit(unit.resolve(item.getArg()));
+                boolean imp = importing ||
+                    item.getCommand().equalsIgnoreCase("import");
+                replay(sub, imp, trans, included, imported);
+            } else if (importing) {
+                if (!item.isCommand()) {
+                    trans.setImporting(true);
+                    trans.handleAST(item.getDefinition());
+                    trans.setImporting(false);
+                }
+            } else if (item.isCommand()) {
+                trans.handleCommand(item.getCommand(), item.getArg());
+            } else {
+                trans.handleAST(item.getDefinition());
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * AST2J : A simple visitor generator for Java
+ * Copyright (c) 2000-2017 Takuo Watanabe <takuo@acm.org>
+ */
+
+package jp.ac.titech.c.psg.ast2j;
+
+import java.util.Map;
+
+/**
+ * A class loader for class files held in memory, by their binary
+ * names.
+ **/
+class MemoryClassLoader extends ClassLoader {
+    private Map<String, byte[]> classes;
+
+    MemoryClassLoader (Map<String, byte[]> classes, ClassLoader parent) {
+        super(parent);
+        this.classes = classes;
+    }
+
+    protected Class<?> findClass (String name) throws ClassNotFoundException {
+        byte[] bytes = classes.get(name);
+        if (bytes == null) 
+            throw new ClassNotFoundException(name);
+        return defineClass(name, bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * AST2J : A simple visitor generator for Java
+ * Copyright (c) 2000-2017 Takuo Watanabe <takuo@acm.org>
+ */
+
+package jp.ac.titech.c.psg.ast2j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles source files held in memory with the system Java compiler,
+ * keeping the class files in memory too.
+ **/
+class MemoryCompiler {
+
+    // A class file written by the compiler
+    private static class ClassFile extends SimpleJavaFileObject {
+        private String name;
+        private Map<String, byte[]> classes;
+
+        ClassFile (String name, Map<String, byte[]> classes) {
+            super(URI.create("mem:///" + name.replace('.', '/') + ".class"),
+                  JavaFileObject.Kind.CLASS);
+            this.name = name;
+            this.classes = classes;
+        }
+
+        public OutputStream openOutputStream () {
+            return new ByteArrayOutputStream() {
+                public void close () {
+                    classes.put(name, toByteArray());
+                }
+            };
+        }
+    }
+
+    // The file manager that keeps the class files in classes
+    private static class Manager 
+        extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        private Map<String, byte[]> classes;
+
+        Manager (StandardJavaFileManager manager, 
+                 Map<String, byte[]> classes) {
+            super(manager);
+            this.classes = classes;
+        }
+
+        public JavaFileObject getJavaFileForOutput
+            (JavaFileManager.Location location, String name,
+             JavaFileObject.Kind kind, FileObject sibling) {
+            return new ClassFile(name, classes);
+        }
+    }
+
+    // The compiler and its file manager, kept for the next call since
+    // making them takes most of the time of a small compilation
+    private static JavaCompiler compiler = null;
+    private static StandardJavaFileManager manager = null;
+
+    /**
+     * Compiles sources and returns the class files by their binary
+     * names.  Throws an IllegalArgumentException with the messages of
+     * the compiler if the compilation fails.
+     **/
+    static synchronized Map<String, byte[]> compile 
+        (List<JavaFileObject> sources) {
+        if (compiler == null) {
+            compiler = ToolProvider.getSystemJavaCompiler();
+            if (compiler == null)
+                throw new IllegalStateException("No Java compiler available");
+            manager = compiler.getStandardFileManager(null, null, null);
+        }
+        HashMap<String, byte[]> classes = new HashMap<String, byte[]>();
+        DiagnosticCollector<JavaFileObject> diagnostics =
+            new DiagnosticCollector<JavaFileObject>();
+        Boolean ok = compiler.getTask(null, new Manager(manager, classes),
+                                      diagnostics, null, null, sources)
+            .call();
+        if (!ok.booleanValue()) {
+            StringBuilder sb = new StringBuilder("Compilation failed");
+            for (Diagnostic<? extends JavaFileObject> d :
+                     diagnostics.getDiagnostics()) {
+                sb.append(System.lineSeparator()).append(d.toString());
+            }
+            throw new IllegalArgumentException(sb.toString());
+        }
+        return classes;
+    }
+}
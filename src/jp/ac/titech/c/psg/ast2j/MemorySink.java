@@ -0,0 +1,54 @@
+/*
+ * AST2J : A simple visitor generator for Java
+ * Copyright (c) 2000-2017 Takuo Watanabe <takuo@acm.org>
+ */
+
+package jp.ac.titech.c.psg.ast2j;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the files in memory, the source files by their paths following
+ * the package names (such as "p/q/Foo.java") and the class files by
+ * the binary names of the classes (such as "p.q.Foo").
+ **/
+public class MemorySink implements OutputSink, ClassSink {
+    private Map<String, CharSequence> files;
+    private Map<String, byte[]> classes = 
+        new ConcurrentHashMap<String, byte[]>();
+
+    public MemorySink () {
+        this(new ConcurrentHashMap<String, CharSequence>());
+    }
+
+    /**
+     * Creates a sink that puts the files into files, which must allow
+     * puts from several threads at once.
+     **/
+    public MemorySink (Map<String, CharSequence> files) {
+        this.files = files;
+    }
+
+    public void write (String pkg, String filename, 
+                       CharSequence contents) {
+        files.put(pathOf(pkg, filename), contents.toString());
+    }
+
+    public void writeClass (String pkg, String name, byte[] bytes) {
+        classes.put((pkg != null) ? pkg + "." + name : name, bytes);
+    }
+
+    public Map<String, CharSequence> getFiles () {
+        return files;
+    }
+
+    public Map<String, byte[]> getClasses () {
+        return classes;
+    }
+
+    static String pathOf (String pkg, String filename) {
+        return (pkg != null) 
+            ? pkg.replace('.', '/') + "/" + filename : filename;
+    }
+}
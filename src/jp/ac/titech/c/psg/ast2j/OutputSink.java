@@ -0,0 +1,22 @@
+/*
+ * AST2J : A simple visitor generator for Java
+ * Copyright (c) 2000-2017 Takuo Watanabe <takuo@acm.org>
+ */
+
+package jp.ac.titech.c.psg.ast2j;
+
+import java.io.IOException;
+
+/**
+ * Where the generated source files go.  write may be called from
+ * several threads at once.
+ **/
+public interface OutputSink {
+    /**
+     * Stores a generated file.  pkg is the package of the class in it
+     * (null for the unnamed package), and filename is its name such as
+     * "Foo.java".  contents may be reused once write returns.
+     **/
+    public void write (String pkg, String filename, CharSequence contents)
+        throws IOException;
+}
@@ -0,0 +1,91 @@
+/*
+ * AST2J : A simple visitor generator for Java
+ * Copyright (c) 2000-2017 Takuo Watanabe <takuo@acm.org>
+ */
+
+package jp.ac.titech.c.psg.ast2j;
+
+import java.util.ArrayList;
+
+/**
+ * The commands and definitions of an input in the order they appear,
+ * each with its extent in the input.  Parser.reparse uses the extents
+ * to parse an edited input again without parsing the items that the
+ * edit cannot affect.
+ **/
+class ParseResult {
+
+    /**
+     * A command or a definition.  The offsets are those of the chars
+     * in the input; end is just past the last char of the item, and
+     * next is just past the last char of the token that follows it
+     * (which the parser had to look at to find the end of the item).
+     **/
+    static class Item {
+        private String cmd;
+        private String arg;
+        private DefinitionAST def;
+        final int start;
+        final int end;
+        final int next;
+        final int line;
+        final int endline;
+
+        Item (String cmd, String arg, DefinitionAST def,
+              int start, int end, int next, int line, int endline) {
+            this.cmd = cmd;
+            this.arg = arg;
+            this.def = def;
+            this.start = start;
+            this.end = end;
+            this.next = next;
+            this.line = line;
+            this.endline = endline;
+        }
+
+        // The same item moved by delta chars and ldelta lines
+        Item shift (int delta, int ldelta) {
+            return new Item(cmd, arg, def,
+                            start + delta, end + delta, next + delta,
+                            line + ldelta, endline + ldelta);
+        }
+
+        public boolean isCommand () { return def == null; }
+        public String getCommand () { return cmd; }
+        public String getArg () { return arg; }
+        public DefinitionAST getDefinition () { return def; }
+        public int getStart () { return start; }
+        public int getEnd () { return end; }
+        public int getLineNo () { return line; }
+    }
+
+    private ArrayList<Item> items = new ArrayList<Item>();
+
+    ParseResult () {}
+
+    void add (Item item) {
+        items.add(item);
+    }
+
+    public int size () {
+        return items.size();
+    }
+
+    public Item get (int i) {
+        return items.get(i);
+    }
+
+    /**
+     * Passes the commands and the definitions to handler in order, as
+     * Parser.parse(handler) would have done.
+     **/
+    public void replay (ParserHandler handler) {
+        for (int i = 0; i < items.size(); i++) {
+            Item item = items.get(i);
+            if (item.isCommand())
+                handler.handleCommand(item.getCommand(), item.getArg());
+            else
+                handler.handleAST(item.getDefinition());
+        }
+    }
+}
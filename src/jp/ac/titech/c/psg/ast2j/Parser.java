@@ -5,11 +5,19 @@
 
 package jp.ac.titech.c.psg.ast2j;
 
+import jp.ac.titech.c.psg.util.SymbolTable;
 import jp.ac.titech.c.psg.util.Tokenizer;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 class Parser {
 
@@ -19,8 +27,51 @@ class Parser {
 
     private Tokenizer tokenizer = null;
 
+    // Symbol IDs of the operators
+    private int sym_alias;
+    private int sym_define;
+    private int sym_colon;
+    private int sym_array;
+
+    // Whether each symbol is a name: 0 (not known yet), 1 (yes), 2 (no)
+    private byte[] names = new byte[256];
+
+    // The end offset and the line of the token before the current one
+    private int prevEnd = 0;
+    private int prevLine = 1;
+
+    // Recovery mode and the errors found in it
+    private boolean recovery = false;
+    private ArrayList<SyntaxError> errors = new ArrayList<SyntaxError>();
+
+    // The name of the definition found by recover (already consumed)
+    // with its offset and line, or null
+    private String pending = null;
+    private int pendingStart;
+    private int pendingLine;
+
     public Parser (InputStream in) {
-        tokenizer = new Tokenizer(in);
+        this(new Tokenizer(in));
+    }
+
+    /**
+     * Creates a parser that reads the UTF-8 encoded file at path
+     * through a memory mapping.
+     **/
+    public Parser (Path path) throws IOException {
+        this(mapFile(path));
+    }
+
+    /**
+     * Creates a parser that reads text.  Only a parser made this way
+     * can reparse.
+     **/
+    public Parser (char[] text) {
+        this(new Tokenizer(text, 0, text.length));
+    }
+
+    private Parser (Tokenizer tokenizer) {
+        this.tokenizer = tokenizer;
         tokenizer.resetSyntax();
         tokenizer.setCharType('\u0000', ' ', Tokenizer.CT_WHITESPACE);
         tokenizer.setCharType('a', 'z', Tokenizer.CT_IDLETTER);
@@ -34,15 +85,75 @@ class Parser {
         tokenizer.setCharType("*", Tokenizer.CT_COMMENT2);
         tokenizer.useCComment(true);
         tokenizer.useCppComment(true);
+        tokenizer.useLazySval(true);
+        SymbolTable symbols = tokenizer.getSymbolTable();
+        sym_alias = symbols.intern("=");
+        sym_define = symbols.intern("::=");
+        sym_colon = symbols.intern(":");
+        sym_array = symbols.intern("[]");
+    }
+
+    private static Tokenizer mapFile (Path path) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            // the mapping stays valid after the channel is closed
+            return new Tokenizer
+                (ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        } finally {
+            ch.close();
+        }
+    }
+
+    /**
+     * Turns the recovery mode on or off.  In the recovery mode a syntax
+     * error does not stop the parser; it is recorded, the parser skips
+     * to the start of the next command or definition (a '#' or a name
+     * followed by '=' or '::='), and goes on from there.  The
+     * definitions with errors are left out of the results.
+     **/
+    public void setRecovery (boolean recovery) {
+        this.recovery = recovery;
+    }
+
+    /**
+     * Returns the errors found so far in the recovery mode, in the
+     * order they were found.  After a reparse they are those in the
+     * part of the input parsed again.
+     **/
+    public List<SyntaxError> getErrors () {
+        return errors;
+    }
+
+    private SyntaxError error (String message) {
+        return new SyntaxError(message + " at " + lineNo(), lineNo());
+    }
+
+    // Skips to the start of the next item (see setRecovery).
+    private void recover () throws IOException {
+        while (!lookingAtEOF() && !lookingAtToken('#')) {
+            if (lookingAtName()) {
+                String name = getSval();
+                int start = tokenizer.tokenStart();
+                int line = lineNo();
+                nextToken();
+                if (lookingAtWord(sym_alias) || lookingAtWord(sym_define)) {
+                    pending = name;
+                    pendingStart = start;
+                    pendingLine = line;
+                    return;
+                }
+            } else
+                nextToken();
+        }
     }
 
     private final boolean lookingAtToken (char token) {
         return tokenizer.ttype == token;
     }
 
-    private final boolean lookingAtWord (String word) {
+    private final boolean lookingAtWord (int symbol) {
         return tokenizer.ttype == Tokenizer.TT_WORD
-            && tokenizer.sval.equals(word);
+            && tokenizer.symbol() == symbol;
     }
 
     private final boolean lookingAtNumber () {
@@ -55,16 +166,31 @@ class Parser {
 
     private boolean lookingAtName () {
         if (tokenizer.ttype == Tokenizer.TT_WORD) {
-            for (int i=0; i < OPCHARS.length; i++) {
-                if (tokenizer.sval.indexOf(OPCHARS[i]) >= 0) return false;
+            int symbol = tokenizer.symbol();
+            if (symbol >= names.length) {
+                byte[] nnames = new byte[Math.max(names.length * 2, 
+                                                  symbol + 1)];
+                System.arraycopy(names, 0, nnames, 0, names.length);
+                names = nnames;
+            }
+            if (names[symbol] == 0) {
+                names[symbol] = 1;
+                for (int i=0; i < OPCHARS.length; i++) {
+                    if (tokenizer.svalIndexOf(OPCHARS[i]) >= 0) {
+                        names[symbol] = 2;
+                        break;
+                    }
+                }
             }
-            return true;
+            return names[symbol] == 1;
         } else {
             return false;
         }
     }
 
     private final void nextToken () throws IOException {
+        prevEnd = tokenizer.tokenEnd();
+        prevLine = tokenizer.lineno();
         tokenizer.nextToken();
     }
 
@@ -73,7 +199,7 @@ class Parser {
     }
 
     private final String getSval () {
-        return tokenizer.sval;
+        return tokenizer.sval();
     }
 
     private final int getNval () {
@@ -87,39 +213,192 @@ class Parser {
     // Program ::= { Command | Definition }
 
     public void parse (ParserHandler handler) throws SyntaxError, IOException {
+        DefinitionAST def;
+        while ((def = nextDefinition(handler)) != null) {
+            handler.handleAST(def);
+        }
+    }
+
+    /**
+     * Parses the whole input and returns its commands and definitions
+     * with their extents, for a later reparse.
+     **/
+    public ParseResult parse () throws SyntaxError, IOException {
+        ParseResult result = new ParseResult();
+        ParseResult.Item item;
+        while ((item = parseItem()) != null) {
+            result.add(item);
+        }
+        return result;
+    }
+
+    /**
+     * Parses the input, an edited version of the input of prev, reusing
+     * the items of prev that the edit cannot affect.  The edit replaced
+     * the chars from start to oldEnd of the old input with those from
+     * start to newEnd of the input.  The items before the edit are
+     * taken as they are, and the parser resumes from the end of the
+     * last of them.  Once it comes back to the start of an old item
+     * after the edit, the rest of the old items are taken with their
+     * offsets and lines shifted, and their DefinitionAST instances
+     * shared with prev.
+     **/
+    public ParseResult reparse (ParseResult prev, 
+                                int start, int oldEnd, int newEnd)
+        throws SyntaxError, IOException {
+        int delta = newEnd - oldEnd;
+        ParseResult result = new ParseResult();
+        int n = prev.size();
+        int j = 0;
+        // the parser looks one token ahead of an item, so the item is
+        // intact only if the edit starts after that token
+        while (j < n && prev.get(j).next < start) {
+            result.add(prev.get(j++));
+        }
+        if (j > 0) {
+            ParseResult.Item last = prev.get(j - 1);
+            tokenizer.seek(last.end, last.endline);
+        } else {
+            tokenizer.seek(0, 1);
+        }
         nextToken();
-        while (lookingAtToken('#') || lookingAtName()) {
-            if (lookingAtToken('#')) {
-                parseCommand(handler);
-            } else {
-                handler.handleAST(parseDefinition());
+        while (true) {
+            int here = (pending != null) 
+                ? pendingStart : tokenizer.tokenStart();
+            while (j < n && (prev.get(j).start < oldEnd ||
+                             prev.get(j).start + delta < here)) {
+                j++;
+            }
+            if (j < n && prev.get(j).start + delta == here) {
+                int line = (pending != null) ? pendingLine : lineNo();
+                int ldelta = line - prev.get(j).line;
+                for (; j < n; j++) {
+                    result.add(prev.get(j).shift(delta, ldelta));
+                }
+                return result;
+            }
+            ParseResult.Item item = parseItem();
+            if (item == null) 
+                return result;
+            result.add(item);
+        }
+    }
+
+    /**
+     * Parses the input up to the end of the next definition and
+     * returns it, or returns null at the end of the input.  The
+     * commands before the definition are passed to handler as soon as
+     * they are parsed.
+     **/
+    public DefinitionAST nextDefinition (ParserHandler handler)
+        throws SyntaxError, IOException {
+        ParseResult.Item item;
+        while ((item = parseItem()) != null) {
+            if (!item.isCommand()) 
+                return item.getDefinition();
+            handler.handleCommand(item.getCommand(), item.getArg());
+        }
+        return null;
+    }
+
+    // Item ::= Command | Definition
+
+    private ParseResult.Item parseItem () throws SyntaxError, IOException {
+        if (getToken() == Tokenizer.TT_NOTHING) 
+            nextToken();
+        while (true) {
+            try {
+                return parseOneItem();
+            } catch (SyntaxError e) {
+                if (!recovery) 
+                    throw e;
+                errors.add(e);
+                recover();
             }
         }
-        if (!lookingAtEOF()) {
-            throw new SyntaxError("Unknown syntax at " + lineNo());
+    }
+
+    private ParseResult.Item parseOneItem () throws SyntaxError, IOException {
+        int start = tokenizer.tokenStart();
+        int line = lineNo();
+        String cmd = null;
+        String arg = null;
+        DefinitionAST def = null;
+        if (pending != null) {
+            start = pendingStart;
+            line = pendingLine;
+            def = parseDefinition();
+        } else if (lookingAtToken('#')) {
+            String[] command = parseCommand();
+            cmd = command[0];
+            arg = command[1];
+        } else if (lookingAtName()) {
+            def = parseDefinition();
+        } else if (lookingAtEOF()) {
+            return null;
+        } else {
+            throw error("Unknown syntax");
         }
+        return new ParseResult.Item(cmd, arg, def, start, prevEnd, 
+                                    tokenizer.tokenEnd(), line, prevLine);
+    }
+
+    /**
+     * Returns an iterator over the definitions of the input that
+     * parses each of them on demand (see nextDefinition).  Errors are
+     * thrown from hasNext and next as an UncheckedIOException or an
+     * IllegalStateException caused by the SyntaxError.
+     **/
+    public Iterator<DefinitionAST> definitions (final ParserHandler handler) {
+        return new Iterator<DefinitionAST>() {
+            private DefinitionAST next = null;
+            private boolean done = false;
+
+            public boolean hasNext () {
+                if (next == null && !done) {
+                    try {
+                        next = nextDefinition(handler);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } catch (SyntaxError e) {
+                        throw new IllegalStateException(e.getMessage(), e);
+                    }
+                    done = (next == null);
+                }
+                return next != null;
+            }
+
+            public DefinitionAST next () {
+                if (!hasNext()) 
+                    throw new NoSuchElementException();
+                DefinitionAST def = next;
+                next = null;
+                return def;
+            }
+        };
     }
 
     // Command ::= '#' Name CommandArg
     // CommandArg ::= Name | String | Number
 
-    private void parseCommand (ParserHandler handler) 
-        throws SyntaxError, IOException {
+    private String[] parseCommand () throws SyntaxError, IOException {
         if (DEBUG) traceMessage("parseCommand");
 
         nextToken();
         if (lookingAtName()) {
             String cmd = getSval();
+            String arg;
             nextToken();
             if (lookingAtNumber())
-                handler.handleCommand(cmd, Integer.toString(getNval()));
+                arg = Integer.toString(getNval());
             else if (lookingAtToken('"') || lookingAtName())
-                handler.handleCommand(cmd, getSval());
+                arg = getSval();
             else
-                throw new SyntaxError ("Bad command arg at " + lineNo());
+                throw error("Bad command arg");
             nextToken();
+            return new String[] { cmd, arg };
         } else
-            throw new SyntaxError ("Bad command name at " + lineNo());
+            throw error("Bad command name");
     }
 
     // Definition ::= AliasDef | SyntaxDef
@@ -129,17 +408,22 @@ class Parser {
     private DefinitionAST parseDefinition () throws SyntaxError, IOException {
         if (DEBUG) traceMessage("parseDefinition");
 
-        String name = getSval();
-        nextToken();
-        if (lookingAtWord("=")) {
+        String name;
+        if (pending != null) {
+            name = pending;
+            pending = null;
+        } else {
+            name = getSval();
+            nextToken();
+        }
+        if (lookingAtWord(sym_alias)) {
             nextToken();
             if (lookingAtName()) {
                 TypeAST type = parseType();
                 return new AliasDefAST(name, type);
             } else
-                throw new SyntaxError ("Bad alias definition for " + name + 
-                                       " at " + lineNo());
-        } else if (lookingAtWord("::=")) {
+                throw error("Bad alias definition for " + name);
+        } else if (lookingAtWord(sym_define)) {
             nextToken();
             if (lookingAtName()) {
                 ArrayList ns = new ArrayList();
@@ -152,12 +436,10 @@ class Parser {
                     (name, 
                      (NodeDefAST[])ns.toArray(new NodeDefAST[ns.size()]));
             } else {
-                throw new SyntaxError ("Bad syntax definition for " + name + 
-                                       " at " + lineNo());
+                throw error("Bad syntax definition for " + name);
             }
         } else {
-            throw new SyntaxError ("Bad definition for " + name + 
-                                   " at " + lineNo());
+            throw error("Bad definition for " + name);
         }
     }
 
@@ -179,8 +461,7 @@ class Parser {
                     if (lookingAtName())
                         fs.add(parseFieldDef());
                     else
-                        throw new SyntaxError ("Bad field definition for " + 
-                                               name + " at " + lineNo());
+                        throw error("Bad field definition for " + name);
                 }
             }
             if (lookingAtToken(')')) {
@@ -189,8 +470,7 @@ class Parser {
                     (name,
                      (FieldDefAST[])fs.toArray(new FieldDefAST[fs.size()]));
             } else
-                throw new SyntaxError("Incomplete definition for " + name + 
-                                      " at " + lineNo());
+                throw error("Incomplete definition for " + name);
         } else
             return new ANodeDefAST(name);
     }
@@ -202,13 +482,12 @@ class Parser {
 
         String name = getSval();
         nextToken();
-        if (lookingAtWord(":")) {
+        if (lookingAtWord(sym_colon)) {
             nextToken();
             TypeAST type = parseType();
             return new FieldDefAST(name, type);
         } else
-            throw new SyntaxError("Bad field definition for " + name + 
-                                  " at " + lineNo());
+            throw error("Bad field definition for " + name);
     }
 
     // Type ::= Name | Type '[]'
@@ -219,7 +498,7 @@ class Parser {
 
         TypeAST type = new PrimTypeAST(getSval());
         nextToken();
-        while (lookingAtWord("[]")) {
+        while (lookingAtWord(sym_array)) {
             nextToken();
             type = new ArrayTypeAST(type);
         }
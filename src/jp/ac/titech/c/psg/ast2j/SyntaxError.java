@@ -5,8 +5,22 @@
 
 package jp.ac.titech.c.psg.ast2j;
 
-class SyntaxError extends Exception {
+public class SyntaxError extends Exception {
+    private int lineno;
+
     public SyntaxError (String message) {
+        this(message, 0);
+    }
+
+    public SyntaxError (String message, int lineno) {
         super(message);
+        this.lineno = lineno;
+    }
+
+    /**
+     * Returns the line where the error was found, or 0 if unknown.
+     **/
+    public int getLineNo () {
+        return lineno;
     }
 }
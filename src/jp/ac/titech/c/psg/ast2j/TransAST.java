@@ -5,13 +5,28 @@
 
 package jp.ac.titech.c.psg.ast2j;
 
-import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
+import jp.ac.titech.c.psg.util.ClassFileWriter;
+
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+/**
+ * Generates the Java classes for the definitions.  The generation is
+ * done in two phases.  While the definitions are handled, the aliases
+ * and the supertypes are recorded and each file to generate is planned
+ * as a Unit, with the parameters in effect at that point.  Then
+ * finishUp emits all the units in parallel on the common fork-join
+ * pool into the output sink (sequentially in the debug mode, where
+ * they share one stream).
+ **/
 class TransAST extends ASTVisitor implements ParserHandler {
 
     // Constants
@@ -29,61 +44,351 @@ class TransAST extends ASTVisitor implements ParserHandler {
     private String param_version = null;
     private String param_message = null;
     private boolean param_uselineno = false;
+    private boolean param_records = false;
+    private boolean param_kinds = false;
+    private boolean param_intern = false;
+    private boolean param_equals = false;
+    private boolean param_serialize = false;
+    private String param_dispatcher = null;
+    private String param_walker = null;
+    private String param_parvisitor = null;
+    private String param_arena = null;
+    private String param_store = null;
+    private String param_genvisitor = null;
+    private String param_intvisitor = null;
+    private String param_boolvisitor = null;
 
     // Accessors for Parameters
     public void setRoot (String root) {
         param_root = root;
+        params = null;
     }
 
     public void setGenRoot (boolean flag) {
         param_genrootp = flag;
+        params = null;
     }
 
     public void setVisitor (String visitor) {
         param_visitor = visitor;
+        params = null;
     }
 
     public void setModifier (String modifier) {
         param_modifier = modifier;
+        params = null;
+    }
+
+    /**
+     * Makes a class of the name be generated that walks a tree without
+     * recursion, with a stack of its own, calling enter before the
+     * children of each node and leave after them.  The children are
+     * skipped if enter returns false.  The children are the fields of
+     * node types and of arrays of them, in order.  The nodes defined
+     * after this get kinds as with setKinds(true).
+     **/
+    public void setWalker (String walker) {
+        param_walker = walker;
+        params = null;
+    }
+
+    /**
+     * Makes an abstract class Name<R> be generated that folds a tree
+     * in pre-order with visit and an associative combine, forking a
+     * RecursiveTask for each subtree larger than the threshold given
+     * to its constructor and visiting smaller ones sequentially.  The
+     * nodes defined after this get kinds as with setKinds(true).
+     **/
+    public void setParallelVisitor (String visitor) {
+        param_parvisitor = visitor;
+        params = null;
+    }
+
+    /**
+     * Makes a class of the name be generated that holds trees in
+     * columns instead of objects.  A node is an int handle into the
+     * arena, with its fields in one array per field of its node class:
+     * the nodes it refers to as handles (-1 for null), the arrays of
+     * nodes as ranges of a shared int array, and the other fields as
+     * they are.  The arena has a new method and accessors for each
+     * concrete node and a visitor on handles.
+     **/
+    public void setArena (String arena) {
+        param_arena = arena;
+        params = null;
+    }
+
+    /**
+     * Makes a class of the name be generated that writes trees into a
+     * flat file and reads them back in place, from a mapped file or a
+     * ByteBuffer, without making objects.  A node is an int reference
+     * into the file; the store has accessors for the fields of each
+     * concrete node, a visitor on references, and materialize, which
+     * makes the objects of a subtree.  The fields must be of node
+     * types, primitive types, String, or arrays of them.  The nodes
+     * defined after this get kinds as with setKinds(true).
+     **/
+    public void setStore (String store) {
+        param_store = store;
+        params = null;
+    }
+
+    /**
+     * Makes an interface of the name be generated with the methods
+     * "R visitX (X n, A arg)" for the type parameters R and A, and
+     * the nodes have "accept (v, arg)" returning the result.
+     **/
+    public void setGenericVisitor (String visitor) {
+        param_genvisitor = visitor;
+        params = null;
+    }
+
+    /**
+     * The same as setGenericVisitor but the methods return int, so
+     * that the results are not boxed.
+     **/
+    public void setIntVisitor (String visitor) {
+        param_intvisitor = visitor;
+        params = null;
+    }
+
+    /**
+     * The same as setGenericVisitor but the methods return boolean.
+     **/
+    public void setBooleanVisitor (String visitor) {
+        param_boolvisitor = visitor;
+        params = null;
     }
 
     public void setPackage (String pkg) {
         param_package = pkg;
+        params = null;
     }
 
     public void setException (String exc) {
         param_exception = exc;
+        params = null;
     }
 
     public void setSource (String source) {
         param_source = source;
+        params = null;
     }
 
     public void setAuthor (String author) {
         param_author = author;
+        params = null;
     }
 
     public void setVersion (String version) {
         param_version = version;
+        params = null;
     }
 
     public void setMessage (String message) {
         param_message = message;
+        params = null;
     }
 
     public void setUseLineNo (boolean uselineno) {
         param_uselineno = uselineno;
+        params = null;
+    }
+
+    /**
+     * In the records style, the root and the abstract nodes are
+     * generated as sealed interfaces and the concrete nodes as records
+     * implementing them, so that a pass can use a switch with patterns
+     * over the nodes instead of a visitor.  A root that is not
+     * generated must then be an interface.
+     **/
+    public void setRecords (boolean records) {
+        param_records = records;
+        params = null;
+    }
+
+    /**
+     * With kinds, each concrete node is numbered from 0 in the order of
+     * the definitions and gets the number as its KIND constant and its
+     * kind() method, and the root gets KIND_COUNT and an abstract
+     * kind().  A root that is not generated must declare kind() itself.
+     **/
+    public void setKinds (boolean kinds) {
+        param_kinds = kinds;
+        params = null;
+    }
+
+    /**
+     * Makes a class of the name be generated with a static method
+     * dispatch(node, visitor) that calls the visit method for the node
+     * by switching on its kind.  The nodes defined after this get
+     * kinds as with setKinds(true).
+     **/
+    public void setDispatcher (String dispatcher) {
+        param_dispatcher = dispatcher;
+        params = null;
+    }
+
+    /**
+     * With interning, each concrete node gets a static factory "of"
+     * that returns the node already made with equal fields if there
+     * is one, so that equal trees made with the factories are the same
+     * object.  The fields of node types are compared by reference, the
+     * line numbers and the other fields by value, and the arrays by
+     * their elements; the arrays must not be changed afterwards.  The
+     * nodes are kept in a table named after the root, which holds them
+     * weakly and locks only a part of itself for each lookup.
+     **/
+    public void setIntern (boolean intern) {
+        param_intern = intern;
+        params = null;
+    }
+
+    /**
+     * With equals, each concrete node gets equals and hashCode that
+     * compare its fields deeply, the arrays by their elements, leaving
+     * out the line number.  A node class keeps its hash in a field
+     * once computed and equals compares the hashes first; a record
+     * computes it each time, since it cannot have the field.  Both go
+     * through a class of their own, which takes deep trees on stacks
+     * of its own instead of the Java stack.  The getters return the
+     * arrays themselves, so changing an element of one after the hash
+     * is kept leaves hashCode stale.
+     **/
+    public void setEquals (boolean equals) {
+        param_equals = equals;
+        params = null;
+    }
+
+    /**
+     * With serialization, each concrete node gets writeTo(DataOutput)
+     * and a static readFrom(DataInput), done without reflection by a
+     * codec class named after the root.  A tree is written after a hash
+     * of the definitions of the nodes, which readFrom checks, with the
+     * integers as varints and each string once.  The fields must be of
+     * node types, primitive types, String, or arrays of them.  The
+     * nodes defined after this get kinds as with setKinds(true).
+     **/
+    public void setSerialize (boolean serialize) {
+        param_serialize = serialize;
+        params = null;
+    }
+
+    /**
+     * Sets where the generated files go.  By default they are written
+     * into the current directory.
+     **/
+    public void setSink (OutputSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Makes the generated classes be written as class files into sink
+     * instead of as source files.  The modifiers other than public,
+     * final and abstract are ignored in the class files.
+     **/
+    public void setClassSink (ClassSink sink) {
+        classSink = sink;
+    }
+
+    /**
+     * While importing, the definitions only add to the aliases and the
+     * supertypes; no class is generated for them.
+     **/
+    public void setImporting (boolean importing) {
+        this.importing = importing;
     }
 
     // Tables
     private HashMap aliases = new HashMap();
+    private HashMap<String, String> resolved = new HashMap<String, String>();
     private HashMap supertbl = new HashMap();
     private ArrayList vmethods = new ArrayList();
+    private ArrayList<Unit> units = new ArrayList<Unit>();
+    private int nkinds = 0;
 
     // Temporary Variables
     private PrintStream out = null;
     private String supername = null;
     private boolean debug = false;
+    private OutputSink sink = new DirectorySink(Paths.get(""), false);
+    private ClassSink classSink = null;
+    private ConcurrentLinkedQueue<IOException> failures =
+        new ConcurrentLinkedQueue<IOException>();
+    private ArrayList<SyntaxError> errors = new ArrayList<SyntaxError>();
+    private boolean importing = false;
+    private StringBuilder typebuf = new StringBuilder();
+    private Params params = null;
+
+    // The parameters that affect the output, as they were when a unit
+    // was planned
+    private class Params {
+        final String root = param_root;
+        final String visitor = param_visitor;
+        final String modifier = param_modifier;
+        final String pkg = param_package;
+        final String exception = param_exception;
+        final boolean uselineno = param_uselineno;
+        final String source = param_source;
+        final String author = param_author;
+        final String version = param_version;
+        final String message = param_message;
+        final boolean records = param_records;
+        final boolean kinds = param_kinds || param_dispatcher != null ||
+            param_walker != null || param_parvisitor != null ||
+            param_store != null || param_serialize;
+        final boolean serialize = param_serialize;
+        final boolean intern = param_intern;
+        final boolean equality = param_equals;
+        final String genvisitor = param_genvisitor;
+        final String intvisitor = param_intvisitor;
+        final String boolvisitor = param_boolvisitor;
+    }
+
+    // Returns the current parameters, shared by the units planned
+    // until a parameter changes
+    private Params params () {
+        if (params == null) 
+            params = new Params();
+        return params;
+    }
+
+    // Kinds of the units
+    private static final int U_ABSTRACT = 0;
+    private static final int U_NODE = 1;
+    private static final int U_ROOT = 2;
+    private static final int U_VISITOR = 3;
+    private static final int U_DISPATCHER = 4;
+    private static final int U_GENERIC_VISITOR = 5;
+    private static final int U_INT_VISITOR = 6;
+    private static final int U_BOOLEAN_VISITOR = 7;
+    private static final int U_WALKER = 8;
+    private static final int U_PARALLEL_VISITOR = 9;
+    private static final int U_ARENA = 10;
+    private static final int U_STORE = 11;
+    private static final int U_INTERN_TABLE = 12;
+    private static final int U_CODEC = 13;
+    private static final int U_EQUALITY = 14;
+
+    // A file to generate
+    private class Unit {
+        final int kind;
+        final String name;
+        final String supername;
+        final String[] types;
+        final String[] vars;
+        final Params params = params();
+        int tag = -1;
+
+        Unit (int kind, String name, String supername, 
+              String[] types, String[] vars) {
+            this.kind = kind;
+            this.name = name;
+            this.supername = supername;
+            this.types = types;
+            this.vars = vars;
+        }
+    }
  
     public TransAST () {}
 
@@ -101,6 +406,20 @@ class TransAST extends ASTVisitor implements ParserHandler {
             if (arg.equalsIgnoreCase("yes")) setGenRoot(true);
         } else if (cmd.equalsIgnoreCase("visitor")) {
             setVisitor(arg);
+        } else if (cmd.equalsIgnoreCase("walker")) {
+            setWalker(arg);
+        } else if (cmd.equalsIgnoreCase("parallel_visitor")) {
+            setParallelVisitor(arg);
+        } else if (cmd.equalsIgnoreCase("arena")) {
+            setArena(arg);
+        } else if (cmd.equalsIgnoreCase("store")) {
+            setStore(arg);
+        } else if (cmd.equalsIgnoreCase("generic_visitor")) {
+            setGenericVisitor(arg);
+        } else if (cmd.equalsIgnoreCase("int_visitor")) {
+            setIntVisitor(arg);
+        } else if (cmd.equalsIgnoreCase("boolean_visitor")) {
+            setBooleanVisitor(arg);
         } else if (cmd.equalsIgnoreCase("package")) {
             setPackage(arg);
         } else if (cmd.equalsIgnoreCase("exception")) {
@@ -109,6 +428,20 @@ class TransAST extends ASTVisitor implements ParserHandler {
             setModifier(arg);
         } else if (cmd.equalsIgnoreCase("use_lineno")) {
             if (arg.equalsIgnoreCase("yes")) setUseLineNo(true);
+        } else if (cmd.equalsIgnoreCase("style")) {
+            if (arg.equalsIgnoreCase("records")) setRecords(true);
+            else if (arg.equalsIgnoreCase("classes")) setRecords(false);
+            else System.err.println("Warning: unknown style " + arg);
+        } else if (cmd.equalsIgnoreCase("kinds")) {
+            setKinds(arg.equalsIgnoreCase("yes"));
+        } else if (cmd.equalsIgnoreCase("intern")) {
+            setIntern(arg.equalsIgnoreCase("yes"));
+        } else if (cmd.equalsIgnoreCase("equals")) {
+            setEquals(arg.equalsIgnoreCase("yes"));
+        } else if (cmd.equalsIgnoreCase("serialize")) {
+            setSerialize(arg.equalsIgnoreCase("yes"));
+        } else if (cmd.equalsIgnoreCase("dispatcher")) {
+            setDispatcher(arg);
         } else if (cmd.equalsIgnoreCase("author")) {
             setAuthor(arg);
         } else if (cmd.equalsIgnoreCase("version")) {
@@ -123,9 +456,18 @@ class TransAST extends ASTVisitor implements ParserHandler {
 
     public void visitAliasDefAST (AliasDefAST n) {
         String name = n.getName();
-        if (aliases.containsKey(name))
+        // the same definition may come again from another file, or
+        // when an imported file is included later
+        if (aliases.containsKey(name) && 
+            !resolve(name).equals(typeName(n.getType())))
             System.err.println("Warning: redefinition of " + name);
+        if (refersTo(n.getType(), name)) {
+            errors.add(new SyntaxError("Cyclic alias " + name));
+            return;
+        }
         aliases.put(name, n.getType());
+        // the types resolved so far may go through the old definition
+        resolved.clear();
     }
 
     public void visitSyntaxDefAST (SyntaxDefAST n) {
@@ -138,30 +480,13 @@ class TransAST extends ASTVisitor implements ParserHandler {
             else
                 supername = param_root;
         } else {
-            if (!name.equals(param_root)) {
-                try {
-                    String filename = name + fext;
-                    if (!debug) {
-                        out = new PrintStream
-                            (new BufferedOutputStream
-                             (new FileOutputStream(filename)));
-                    }
-                    writeHeader(out, filename);
-                    if (param_package != null) 
-                        out.println("package " + param_package + ";");
-                    if (param_modifier != null)
-                        out.print(param_modifier + " ");
-                    out.print("abstract class " + name + " extends ");
-                    if (supertbl.containsKey(name))
-                        out.print((String)supertbl.get(name));
-                    else
-                        out.print(param_root);
-                    out.println(" {}");
-                    out.flush();
-                } catch (IOException e) {}
-                finally {
-                    if (!debug && out != null) out.close();
-                }
+            if (!importing && !name.equals(param_root)) {
+                String sname;
+                if (supertbl.containsKey(name))
+                    sname = (String)supertbl.get(name);
+                else
+                    sname = param_root;
+                units.add(new Unit(U_ABSTRACT, name, sname, null, null));
             }
             supername = name;
         }
@@ -171,199 +496,3251 @@ class TransAST extends ASTVisitor implements ParserHandler {
     }
 
     public void visitCNodeDefAST (CNodeDefAST n) {
-        try {
-            String name = n.getName();
-            String filename = name + fext;
-            if (!debug) {
-                out = new PrintStream
-                    (new BufferedOutputStream
-                     (new FileOutputStream(filename)));
-            }
-            writeHeader(out, filename);
-            FieldDefAST[] fields = n.getFields();
-            if (param_package != null) 
-                out.println("package " + param_package + ";");
-            if (param_modifier != null) 
-                out.print(param_modifier + " ");
-            out.println("class " + name + " extends " + supername + " {");
-
-            // private fields
-            if (param_uselineno) {
-                out.println("    private int __lineno;");
-            }
-            for (int i=0; i<fields.length; i++) {
-                out.print("    private ");
-                fields[i].getType().accept(this);
-                out.println(" " + fields[i].getVar() + ";");
-            }
-
-            // constructor
-            out.print("    public " + name + " (");
-            if (param_uselineno) {
-                out.print("int __lineno");
-                if (fields.length>0) {
-                    out.print(", ");
+        if (importing) return;
+        String name = n.getName();
+        FieldDefAST[] fields = n.getFields();
+        String[] types = new String[fields.length];
+        String[] vars = new String[fields.length];
+        for (int i=0; i<fields.length; i++) {
+            types[i] = typeName(fields[i].getType());
+            vars[i] = fields[i].getVar();
+        }
+        Unit u = new Unit(U_NODE, name, supername, types, vars);
+        if (u.params.kinds) u.tag = nkinds++;
+        units.add(u);
+        if (param_visitor != null) {
+            String vm = "void visit" + name + " (" + name + " n)";
+            if (param_exception != null) 
+                vm = vm + " throws " + param_exception;
+            vmethods.add(vm);
+        }
+    }
+
+    public void visitANodeDefAST (ANodeDefAST n) {
+        String name = n.getName();
+        if (supertbl.containsKey(name) && 
+            !supertbl.get(name).equals(supername))
+            System.err.println("Warning: redefinition of " + name);
+        supertbl.put(name, supername);
+    }
+
+    public void visitFieldDefAST (FieldDefAST n) {}
+
+    public void visitPrimTypeAST (PrimTypeAST n) {
+        typebuf.append(resolve(n.getName()));
+    }
+
+    public void visitArrayTypeAST (ArrayTypeAST n) {
+        n.getElem().accept(this);
+        typebuf.append("[]");
+    }
+
+    // Returns the Java type for type with the aliases resolved
+    private String typeName (TypeAST type) {
+        typebuf.setLength(0);
+        type.accept(this);
+        return typebuf.toString();
+    }
+
+    // Returns the Java type for the type name tname, resolving the
+    // aliases once and remembering the result until an alias changes
+    private String resolve (String tname) {
+        String t = resolved.get(tname);
+        if (t != null) return t;
+        TypeAST type = (TypeAST)aliases.get(tname);
+        if (type == null) return tname;
+        int dims = 0;
+        while (type instanceof ArrayTypeAST) {
+            type = ((ArrayTypeAST)type).getElem();
+            dims++;
+        }
+        StringBuilder sb = 
+            new StringBuilder(resolve(((PrimTypeAST)type).getName()));
+        for (int i = 0; i < dims; i++) {
+            sb.append("[]");
+        }
+        t = sb.toString();
+        resolved.put(tname, t);
+        return t;
+    }
+
+    // Returns whether type is name, or an array of it, through the
+    // aliases.  The aliases defined so far have no cycle, so this ends.
+    private boolean refersTo (TypeAST type, String name) {
+        while (true) {
+            while (type instanceof ArrayTypeAST) {
+                type = ((ArrayTypeAST)type).getElem();
+            }
+            String tname = ((PrimTypeAST)type).getName();
+            if (tname.equals(name)) return true;
+            type = (TypeAST)aliases.get(tname);
+            if (type == null) return false;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    // Other Methods
+
+    /**
+     * Emits the planned files.  If the grammar has a cyclic alias, or
+     * uses the records style while class files are to be written,
+     * throws a SyntaxError for the first such error with those for the
+     * others added as suppressed, and emits nothing.  If some of the files
+     * could not be written, throws the IOException of the first in the
+     * same way, after trying all the files.
+     **/
+    public void finishUp () throws SyntaxError, IOException {
+        if (param_genrootp) {
+            units.add(new Unit(U_ROOT, param_root, null, null, null));
+        }
+        if (param_visitor != null) {
+            units.add(new Unit(U_VISITOR, param_visitor, null, null, null));
+        }
+        for (int k = U_GENERIC_VISITOR; k <= U_BOOLEAN_VISITOR; k++) {
+            String name = typedVisitor(params(), k);
+            if (name != null) units.add(new Unit(k, name, null, null, null));
+        }
+        if (param_dispatcher != null) {
+            Unit u = new Unit(U_DISPATCHER, param_dispatcher, 
+                              null, null, null);
+            units.add(u);
+            if (param_visitor == null)
+                errors.add(new SyntaxError
+                           ("The dispatcher " + u.name + " needs a visitor"));
+            if (classSink != null && !debug)
+                errors.add(new SyntaxError
+                           ("The dispatcher cannot be written as class files"));
+        }
+        if (param_walker != null) {
+            units.add(new Unit(U_WALKER, param_walker, null, null, null));
+            if (classSink != null && !debug)
+                errors.add(new SyntaxError
+                           ("The walker cannot be written as class files"));
+        }
+        if (param_parvisitor != null) {
+            units.add(new Unit(U_PARALLEL_VISITOR, param_parvisitor, 
+                               null, null, null));
+            if (classSink != null && !debug)
+                errors.add(new SyntaxError
+                           ("The parallel visitor cannot be written as " + 
+                            "class files"));
+        }
+        if (param_arena != null) {
+            units.add(new Unit(U_ARENA, param_arena, null, null, null));
+            if (classSink != null && !debug)
+                errors.add(new SyntaxError
+                           ("The arena cannot be written as class files"));
+            checkMembers(units.get(units.size() - 1), "The arena", 
+                         ARENA_FIELDS, ARENA_METHODS);
+        }
+        if (param_store != null) {
+            Unit u = new Unit(U_STORE, param_store, null, null, null);
+            units.add(u);
+            checkFields(u, "The store");
+            checkMembers(u, "The store", STORE_FIELDS, STORE_METHODS);
+            if (classSink != null && !debug)
+                errors.add(new SyntaxError
+                           ("The store cannot be written as class files"));
+        }
+        String table = null;
+        String codec = null;
+        String equality = null;
+        for (int i = 0; i < units.size(); i++) {
+            Unit u = units.get(i);
+            if (u.kind == U_NODE && u.params.intern) 
+                table = internTable(u.params);
+            if (u.kind == U_NODE && u.params.serialize) 
+                codec = codec(u.params);
+            if (u.kind == U_NODE && u.params.equality) 
+                equality = equality(u.params);
+        }
+        if (codec != null) {
+            Unit u = new Unit(U_CODEC, codec, null, null, null);
+            units.add(u);
+            checkFields(u, "The codec");
+            if (classSink != null && !debug)
+                errors.add(new SyntaxError
+                           ("Serialization cannot be written as class files"));
+        }
+        if (equality != null) {
+            units.add(new Unit(U_EQUALITY, equality, null, null, null));
+            if (classSink != null && !debug)
+                errors.add(new SyntaxError
+                           ("Structural equality cannot be written as " + 
+                            "class files"));
+        }
+        if (table != null) {
+            units.add(new Unit(U_INTERN_TABLE, table, null, null, null));
+            if (classSink != null && !debug)
+                errors.add(new SyntaxError
+                           ("Interning cannot be written as class files"));
+        }
+        boolean records = false;
+        for (int i = 0; i < units.size(); i++) {
+            records |= units.get(i).params.records;
+        }
+        if (records && classSink != null && !debug)
+            errors.add(new SyntaxError
+                       ("The records style cannot be written as class files"));
+        if (!errors.isEmpty()) {
+            SyntaxError e = errors.get(0);
+            for (int i = 1; i < errors.size(); i++) {
+                e.addSuppressed(errors.get(i));
+            }
+            throw e;
+        }
+        if (records) findPermits();
+        if (classSink != null) {
+            classes = new HashSet<String>();
+            for (int i = 0; i < units.size(); i++) {
+                Unit u = units.get(i);
+                classes.add(internalName(u.params.pkg, u.name));
+            }
+        }
+        if (debug) {
+            Text text = new Text();
+            for (int i = 0; i < units.size(); i++) {
+                emit(units.get(i), text);
+            }
+        } else {
+            ForkJoinPool.commonPool().invoke(new Emitter(0, units.size()));
+        }
+        IOException e = failures.poll();
+        if (e != null) {
+            IOException f;
+            while ((f = failures.poll()) != null) {
+                e.addSuppressed(f);
+            }
+            throw e;
+        }
+    }
+
+    // A buffer the files are rendered into, reused for the next file
+    private static class Text {
+        private static final String nl = System.lineSeparator();
+        final StringBuilder sb = new StringBuilder(4096);
+
+        void print (String s) {
+            sb.append(s);
+        }
+
+        void println (String s) {
+            sb.append(s).append(nl);
+        }
+    }
+
+    // Emits the units from lo to hi (exclusive)
+    private class Emitter extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int lo;
+        private final int hi;
+
+        Emitter (int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected void compute () {
+            if (hi - lo <= 16) {
+                Text text = new Text();
+                for (int i = lo; i < hi; i++) {
+                    emit(units.get(i), text);
+                }
+            } else {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Emitter(lo, mid), new Emitter(mid, hi));
+            }
+        }
+    }
+
+    private void emit (Unit u, Text out) {
+        if (classSink != null && !debug) {
+            emitClass(u);
+            return;
+        }
+        String filename = u.name + fext;
+        out.sb.setLength(0);
+        writeHeader(out, filename, u.params);
+        if (u.params.records) {
+            switch (u.kind) {
+            case U_ABSTRACT: generateInterface(out, u, u.supername); break;
+            case U_NODE: generateRecord(out, u); break;
+            case U_ROOT: generateInterface(out, u, null); break;
+            case U_VISITOR: generateVisitor(out, u); break;
+            case U_DISPATCHER: generateDispatcher(out, u); break;
+            case U_WALKER: generateWalker(out, u); break;
+            case U_PARALLEL_VISITOR: generateParallelVisitor(out, u); break;
+            case U_ARENA: generateArena(out, u); break;
+            case U_STORE: generateStore(out, u); break;
+            case U_INTERN_TABLE: generateInternTable(out, u); break;
+            case U_CODEC: generateCodec(out, u); break;
+            case U_EQUALITY: generateEquality(out, u); break;
+            default: generateTypedVisitor(out, u); break;
+            }
+        } else {
+            switch (u.kind) {
+            case U_ABSTRACT: generateAbstractClass(out, u); break;
+            case U_NODE: generateNodeClass(out, u); break;
+            case U_ROOT: generateRootClass(out, u); break;
+            case U_VISITOR: generateVisitor(out, u); break;
+            case U_DISPATCHER: generateDispatcher(out, u); break;
+            case U_WALKER: generateWalker(out, u); break;
+            case U_PARALLEL_VISITOR: generateParallelVisitor(out, u); break;
+            case U_ARENA: generateArena(out, u); break;
+            case U_STORE: generateStore(out, u); break;
+            case U_INTERN_TABLE: generateInternTable(out, u); break;
+            case U_CODEC: generateCodec(out, u); break;
+            case U_EQUALITY: generateEquality(out, u); break;
+            default: generateTypedVisitor(out, u); break;
+            }
+        }
+        if (debug) {
+            this.out.print(out.sb);
+            this.out.flush();
+        } else {
+            try {
+                sink.write(u.params.pkg, filename, out.sb);
+            } catch (IOException e) {
+                failures.add(e);
+            }
+        }
+    }
+
+    private void generateAbstractClass (Text out, Unit u) {
+        Params p = u.params;
+        if (p.pkg != null) 
+            out.println("package " + p.pkg + ";");
+        if (p.modifier != null)
+            out.print(p.modifier + " ");
+        out.print("abstract class " + u.name + " extends ");
+        out.print(u.supername);
+        out.println(" {}");
+    }
+
+    private void generateNodeClass (Text out, Unit u) {
+        Params p = u.params;
+        String name = u.name;
+        String[] types = u.types;
+        String[] vars = u.vars;
+        if (p.pkg != null) 
+            out.println("package " + p.pkg + ";");
+        if (p.modifier != null) 
+            out.print(p.modifier + " ");
+        out.println("class " + name + " extends " + u.supername + " {");
+        if (u.tag >= 0) {
+            out.println("    public static final int KIND = " + u.tag + ";");
+        }
+
+        // private fields
+        if (p.uselineno) {
+            out.println("    private int __lineno;");
+        }
+        for (int i=0; i<vars.length; i++) {
+            out.println("    private " + types[i] + " " + vars[i] + ";");
+        }
+        if (p.equality) {
+            // set by the equality class once the hash is taken
+            out.println("    int __hash;");
+        }
+
+        // constructor
+        out.print("    public " + name + " (");
+        if (p.uselineno) {
+            out.print("int __lineno");
+            if (vars.length>0) {
+                out.print(", ");
+            }
+        }
+        if (vars.length>0) {
+            out.print(types[0] + " " + vars[0]);
+            for (int i=1; i<vars.length; i++) {
+                out.print(", " + types[i] + " " + vars[i]);
+            }
+        }
+        out.println(") {");
+        if (p.uselineno) {
+            out.println("        this.__lineno = __lineno;");
+        }
+        for (int i=0; i<vars.length; i++) {
+            String v = vars[i];
+            out.println("        this." + v + " = " + v + ";");
+        }
+        out.println("    }");
+
+        // accessor
+        if (p.uselineno) {
+            out.println("    public int getLineNo () { return __lineno; }");
+        }
+        for (int i=0; i<vars.length; i++) {
+            String v = vars[i];
+            char[]vs = v.toCharArray();
+            vs[0] = Character.toUpperCase(vs[0]);
+            out.println("    public " + types[i] + " get" + new String(vs) + 
+                        " () { return " + v + "; }");
+        }
+        if (u.tag >= 0) {
+            out.println("    public int kind () { return KIND; }");
+        }
+        // visitor
+        if (p.visitor != null) {
+            out.print("    public void accept (" + p.visitor + " v)");
+            if (p.exception != null) {
+                out.print(" throws " + p.exception);
+            }
+            out.println(" {");
+            out.println("        v.visit" + name + "(this);");
+            out.println("    }");
+        }
+        generateTypedAccepts(out, u);
+        generateInterning(out, u);
+        generateEquals(out, u);
+        generateSerialization(out, u);
+        out.println("}");
+    }
+
+    private void generateRootClass (Text out, Unit u) {
+        Params p = u.params;
+        if (p.pkg != null) 
+            out.println("package " + p.pkg + ";");
+        if (p.modifier != null) 
+            out.print(p.modifier + " ");
+        out.print("abstract class " + p.root + " {");
+        if (p.kinds || p.visitor != null || hasTypedVisitor(p) || 
+            p.serialize) {
+            out.println("");
+        }
+        if (p.kinds) {
+            out.println("    public static final int KIND_COUNT = " + 
+                        nkinds + ";");
+            out.println("    public abstract int kind ();");
+        }
+        if (p.visitor != null) {
+            out.print("    public abstract void accept (" + 
+                      p.visitor + " v)");
+            if (p.exception != null) {
+                out.print(" throws " + p.exception);
+            }
+            out.println(";");
+        }
+        for (int k = U_GENERIC_VISITOR; k <= U_BOOLEAN_VISITOR; k++) {
+            if (typedVisitor(p, k) == null) continue;
+            out.print("    public abstract " + typedAccept(p, k));
+            if (p.exception != null) {
+                out.print(" throws " + p.exception);
+            }
+            out.println(";");
+        }
+        if (p.serialize) {
+            out.println("    public abstract void writeTo " + 
+                        "(java.io.DataOutput out) throws java.io.IOException;");
+            out.println("    public static " + p.root + " readFrom " + 
+                        "(java.io.DataInput in) throws java.io.IOException {");
+            out.println("        return " + codec(p) + ".read(in);");
+            out.println("    }");
+        }
+        out.println("}");
+    }
+
+    private void generateVisitor (Text out, Unit u) {
+        Params p = u.params;
+        if (p.pkg != null) 
+            out.println("package " + p.pkg + ";");
+        if (p.modifier != null) 
+            out.print(p.modifier + " ");
+        out.println("abstract class " + p.visitor + " {");
+        for (int i=0; i < vmethods.size(); i++) {
+            out.println("    public abstract " + vmethods.get(i) + ";");
+        }
+        out.println("}");
+    }
+
+    private void generateTypedVisitor (Text out, Unit u) {
+        Params p = u.params;
+        if (p.pkg != null) 
+            out.println("package " + p.pkg + ";");
+        if (p.modifier != null) 
+            out.print(p.modifier + " ");
+        out.println("interface " + u.name + typeParams(u.kind) + " {");
+        for (int i = 0; i < units.size(); i++) {
+            Unit n = units.get(i);
+            if (n.kind == U_NODE && typedVisitor(n.params, u.kind) != null) {
+                out.print("    " + resultType(u.kind) + " visit" + n.name + 
+                          " (" + n.name + " n, A arg)");
+                if (n.params.exception != null) {
+                    out.print(" throws " + n.params.exception);
                 }
+                out.println(";");
             }
-            if (fields.length>0) {
-                fields[0].getType().accept(this);
-                out.print(" " + fields[0].getVar());
-                for (int i=1; i<fields.length; i++) {
-                    out.print(", ");
-                    fields[i].getType().accept(this);
-                    out.print(" " + fields[i].getVar());
+        }
+        out.println("}");
+    }
+
+    private void generateTypedAccepts (Text out, Unit u) {
+        Params p = u.params;
+        for (int k = U_GENERIC_VISITOR; k <= U_BOOLEAN_VISITOR; k++) {
+            if (typedVisitor(p, k) == null) continue;
+            out.print("    public " + typedAccept(p, k));
+            if (p.exception != null) {
+                out.print(" throws " + p.exception);
+            }
+            out.println(" {");
+            out.println("        return v.visit" + u.name + "(this, arg);");
+            out.println("    }");
+        }
+    }
+
+    // The typed visitor of the kind of unit in p, or null
+    private static String typedVisitor (Params p, int kind) {
+        switch (kind) {
+        case U_GENERIC_VISITOR: return p.genvisitor;
+        case U_INT_VISITOR: return p.intvisitor;
+        default: return p.boolvisitor;
+        }
+    }
+
+    private static boolean hasTypedVisitor (Params p) {
+        return p.genvisitor != null || p.intvisitor != null || 
+            p.boolvisitor != null;
+    }
+
+    private static String typeParams (int kind) {
+        return (kind == U_GENERIC_VISITOR) ? "<R, A>" : "<A>";
+    }
+
+    private static String resultType (int kind) {
+        switch (kind) {
+        case U_GENERIC_VISITOR: return "R";
+        case U_INT_VISITOR: return "int";
+        default: return "boolean";
+        }
+    }
+
+    // The signature of the accept method for the typed visitor
+    private static String typedAccept (Params p, int kind) {
+        return typeParams(kind) + " " + resultType(kind) + " accept (" + 
+            typedVisitor(p, kind) + typeParams(kind) + " v, A arg)";
+    }
+
+    private void generateDispatcher (Text out, Unit u) {
+        Params p = u.params;
+        if (p.pkg != null) 
+            out.println("package " + p.pkg + ";");
+        if (p.modifier != null) 
+            out.print(p.modifier + " ");
+        out.println("class " + u.name + " {");
+        out.println("    public static final int KIND_COUNT = " + 
+                    nkinds + ";");
+        out.println("    private " + u.name + " () {}");
+        out.print("    public static void dispatch (" + p.root + " n, " + 
+                  p.visitor + " v)");
+        if (p.exception != null) {
+            out.print(" throws " + p.exception);
+        }
+        out.println(" {");
+        out.println("        switch (n.kind()) {");
+        for (int i = 0; i < units.size(); i++) {
+            Unit n = units.get(i);
+            if (n.kind == U_NODE && n.tag >= 0 && n.params.visitor != null) {
+                out.println("        case " + n.name + ".KIND: v.visit" + 
+                            n.name + "((" + n.name + ")n); break;");
+            }
+        }
+        out.println("        default: throw new IllegalArgumentException" + 
+                    "(\"Unknown kind \" + n.kind());");
+        out.println("        }");
+        out.println("    }");
+        out.println("}");
+    }
+
+    private void generateWalker (Text out, Unit u) {
+        Params p = u.params;
+        String root = p.root;
+        if (p.pkg != null) 
+            out.println("package " + p.pkg + ";");
+        if (p.modifier != null) 
+            out.print(p.modifier + " ");
+        out.println("class " + u.name + " {");
+        out.println("    private " + root + "[] nodes = new " + root + 
+                    "[64];");
+        out.println("    private boolean[] leaving = new boolean[64];");
+        out.println("    private int sp = 0;");
+        out.println("    protected boolean enter (" + root + 
+                    " n) { return true; }");
+        out.println("    protected void leave (" + root + " n) {}");
+        out.println("    public void walk (" + root + " n) {");
+        out.println("        int base = sp;");
+        out.println("        push(n, false);");
+        out.println("        while (sp > base) {");
+        out.println("            n = nodes[--sp];");
+        out.println("            nodes[sp] = null;");
+        out.println("            if (leaving[sp]) {");
+        out.println("                leave(n);");
+        out.println("                continue;");
+        out.println("            }");
+        out.println("            push(n, true);");
+        out.println("            if (!enter(n)) continue;");
+        generateChildren(out, u, "            ", "push(", ", false)");
+        out.println("        }");
+        out.println("    }");
+        out.println("    private void push (" + root + 
+                    " n, boolean leave) {");
+        out.println("        if (n == null) return;");
+        out.println("        if (sp == nodes.length) {");
+        out.println("            nodes = java.util.Arrays.copyOf" + 
+                    "(nodes, sp * 2);");
+        out.println("            leaving = java.util.Arrays.copyOf" + 
+                    "(leaving, sp * 2);");
+        out.println("        }");
+        out.println("        nodes[sp] = n;");
+        out.println("        leaving[sp++] = leave;");
+        out.println("    }");
+        out.println("}");
+    }
+
+    private void generateParallelVisitor (Text out, Unit u) {
+        Params p = u.params;
+        String root = p.root;
+        String name = u.name;
+        if (p.pkg != null) 
+            out.println("package " + p.pkg + ";");
+        if (p.modifier != null) 
+            out.print(p.modifier + " ");
+        out.println("abstract class " + name + "<R> {");
+        out.println("    private final int threshold;");
+        out.println("    protected " + name + " (int threshold) {");
+        out.println("        this.threshold = threshold;");
+        out.println("    }");
+        out.println("    protected abstract R visit (" + root + " n);");
+        out.println("    protected abstract R combine (R a, R b);");
+        out.println("    public R invoke (" + root + " n) {");
+        out.println("        java.util.Objects.requireNonNull(n, " + 
+                    "\"the root is null\");");
+        out.println("        if (countUpTo(n, threshold) <= threshold) " + 
+                    "return sequential(n);");
+        out.println("        return java.util.concurrent.ForkJoinPool" + 
+                    ".commonPool().invoke(new SubtreeTask(n));");
+        out.println("    }");
+        out.println("    public R sequential (" + root + " n) {");
+        out.println("        java.util.Objects.requireNonNull(n, " + 
+                    "\"the root is null\");");
+        out.println("        return sequential(n, new NodeStack());");
+        out.println("    }");
+        out.println("    private R sequential (" + root + " n, NodeStack s) {");
+        out.println("        R acc = visit(n);");
+        out.println("        children(n, s);");
+        out.println("        while (s.sp > 0) {");
+        out.println("            n = s.pop();");
+        out.println("            acc = combine(acc, visit(n));");
+        out.println("            children(n, s);");
+        out.println("        }");
+        out.println("        return acc;");
+        out.println("    }");
+        out.println("    public static int countUpTo (" + root + 
+                    " n, int limit) {");
+        out.println("        NodeStack s = new NodeStack();");
+        out.println("        s.push(n);");
+        out.println("        int count = 0;");
+        out.println("        while (s.sp > 0 && count <= limit) {");
+        out.println("            children(s.pop(), s);");
+        out.println("            count++;");
+        out.println("        }");
+        out.println("        return count;");
+        out.println("    }");
+        out.println("    private static int[] sizes (" + root + 
+                    "[] kids, int limit, NodeStack[] stacks) {");
+        out.println("        int k = kids.length;");
+        out.println("        int[] counts = new int[k];");
+        out.println("        for (int i = 0; i < k; i++) {");
+        out.println("            stacks[i].push(kids[i]);");
+        out.println("        }");
+        out.println("        int open = k;");
+        out.println("        while (open > 1) {");
+        out.println("            open = 0;");
+        out.println("            for (int i = 0; i < k; i++) {");
+        out.println("                NodeStack s = stacks[i];");
+        out.println("                if (s.sp > 0 && counts[i] <= limit) {");
+        out.println("                    children(s.pop(), s);");
+        out.println("                    counts[i]++;");
+        out.println("                    if (s.sp > 0 && counts[i] <= limit) " +
+                    "open++;");
+        out.println("                }");
+        out.println("            }");
+        out.println("        }");
+        out.println("        for (int i = 0; i < k; i++) {");
+        out.println("            if (stacks[i].sp > 0 && counts[i] <= limit) " +
+                    "counts[i] = -1;");
+        out.println("            stacks[i].clear();");
+        out.println("        }");
+        out.println("        return counts;");
+        out.println("    }");
+        out.println("    private class SubtreeTask extends " + 
+                    "java.util.concurrent.RecursiveTask<R> {");
+        out.println("        private static final long serialVersionUID " + 
+                    "= 1L;");
+        out.println("        private final " + root + " node;");
+        out.println("        SubtreeTask (" + root + " node) {");
+        out.println("            this.node = node;");
+        out.println("        }");
+        out.println("        protected R compute () {");
+        out.println("            java.util.ArrayList<Object> left = " + 
+                    "new java.util.ArrayList<Object>();");
+        out.println("            java.util.ArrayList<Object> right = " + 
+                    "new java.util.ArrayList<Object>();");
+        out.println("            NodeStack s = new NodeStack();");
+        out.println("            NodeStack[] stacks = new NodeStack[0];");
+        out.println("            " + root + " n = node;");
+        out.println("            while (n != null) {");
+        out.println("                add(left, visit(n), false);");
+        out.println("                children(n, s);");
+        out.println("                int k = s.sp;");
+        out.println("                " + root + "[] kids = new " + root + 
+                    "[k];");
+        out.println("                for (int i = 0; i < k; i++) " + 
+                    "kids[i] = s.pop();");
+        out.println("                if (stacks.length < k) {");
+        out.println("                    stacks = java.util.Arrays.copyOf" + 
+                    "(stacks, k);");
+        out.println("                    for (int i = 0; i < k; i++) " + 
+                    "if (stacks[i] == null) stacks[i] = new NodeStack();");
+        out.println("                }");
+        out.println("                int[] size = (k == 1) ? new int[] { -1 } " +
+                    ": sizes(kids, threshold, stacks);");
+        out.println("                Object[] parts = new Object[k];");
+        out.println("                int j = -1;");
+        out.println("                for (int i = k - 1; i >= 0; i--) {");
+        out.println("                    if (size[i] > threshold) " + 
+                    "parts[i] = new SubtreeTask(kids[i]).fork();");
+        out.println("                    else if (size[i] < 0) j = i;");
+        out.println("                }");
+        out.println("                for (int i = 0; i < k; i++) {");
+        out.println("                    if (size[i] >= 0 && " + 
+                    "size[i] <= threshold) parts[i] = sequential(kids[i], s);");
+        out.println("                }");
+        out.println("                if (j < 0) {");
+        out.println("                    for (int i = 0; i < k; i++) " + 
+                    "add(left, parts[i], false);");
+        out.println("                    n = null;");
+        out.println("                } else {");
+        out.println("                    for (int i = 0; i < j; i++) " + 
+                    "add(left, parts[i], false);");
+        out.println("                    for (int i = k - 1; i > j; i--) " + 
+                    "add(right, parts[i], true);");
+        out.println("                    n = kids[j];");
+        out.println("                }");
+        out.println("            }");
+        out.println("            R acc = value(left.get(0));");
+        out.println("            for (int i = 1; i < left.size(); i++) " + 
+                    "acc = combine(acc, value(left.get(i)));");
+        out.println("            for (int i = right.size() - 1; i >= 0; i--) " +
+                    "acc = combine(acc, value(right.get(i)));");
+        out.println("            return acc;");
+        out.println("        }");
+        out.println("        @SuppressWarnings(\"unchecked\")");
+        out.println("        private void add (java.util.ArrayList<Object> " +
+                    "parts, Object part, boolean before) {");
+        out.println("            int last = parts.size() - 1;");
+        out.println("            if (last < 0 || part instanceof " + 
+                    "java.util.concurrent.ForkJoinTask ||");
+        out.println("                parts.get(last) instanceof " + 
+                    "java.util.concurrent.ForkJoinTask) {");
+        out.println("                parts.add(part);");
+        out.println("            } else {");
+        out.println("                R a = (R)parts.get(last);");
+        out.println("                parts.set(last, before ? " + 
+                    "combine((R)part, a) : combine(a, (R)part));");
+        out.println("            }");
+        out.println("        }");
+        out.println("        @SuppressWarnings(\"unchecked\")");
+        out.println("        private R value (Object part) {");
+        out.println("            if (part instanceof " + 
+                    "java.util.concurrent.ForkJoinTask)");
+        out.println("                return ((java.util.concurrent." + 
+                    "ForkJoinTask<R>)part).join();");
+        out.println("            return (R)part;");
+        out.println("        }");
+        out.println("    }");
+        out.println("    private static void children (" + root + 
+                    " n, NodeStack s) {");
+        generateChildren(out, u, "        ", "s.push(", ")");
+        out.println("    }");
+        out.println("    private static class NodeStack {");
+        out.println("        " + root + "[] a = new " + root + "[16];");
+        out.println("        int sp = 0;");
+        out.println("        void push (" + root + " n) {");
+        out.println("            if (n == null) return;");
+        out.println("            if (sp == a.length) " + 
+                    "a = java.util.Arrays.copyOf(a, sp * 2);");
+        out.println("            a[sp++] = n;");
+        out.println("        }");
+        out.println("        void clear () {");
+        out.println("            java.util.Arrays.fill(a, 0, sp, null);");
+        out.println("            sp = 0;");
+        out.println("        }");
+        out.println("        " + root + " pop () {");
+        out.println("            " + root + " n = a[--sp];");
+        out.println("            a[sp] = null;");
+        out.println("            return n;");
+        out.println("        }");
+        out.println("    }");
+        out.println("}");
+    }
+
+    // Generates a switch that pushes the children of n, the fields of
+    // node types and of arrays of them, in reverse order, each as
+    // push + child + post
+    private void generateChildren (Text out, Unit u, String indent, 
+                                   String push, String post) {
+        HashSet<String> nodes = nodeTypes(u.params);
+        out.println(indent + "switch (n.kind()) {");
+        for (int i = 0; i < units.size(); i++) {
+            Unit n = units.get(i);
+            if (n.kind != U_NODE || n.tag < 0) continue;
+            boolean found = false;
+            for (int j = n.vars.length - 1; j >= 0; j--) {
+                String type = n.types[j];
+                boolean array = type.endsWith("[]");
+                if (array) type = type.substring(0, type.length() - 2);
+                if (!nodes.contains(type)) continue;
+                if (!found) {
+                    out.println(indent + "case " + n.name + ".KIND: {");
+                    out.println(indent + "    " + n.name + " x = (" + 
+                                n.name + ")n;");
+                    found = true;
                 }
+                String get = "x." + accessor(n.params, n.vars[j]) + "()";
+                if (array) {
+                    String a = "a" + j;
+                    out.println(indent + "    " + type + "[] " + a + 
+                                " = " + get + ";");
+                    out.println(indent + "    if (" + a + " != null)");
+                    out.println(indent + "        for (int i = " + a + 
+                                ".length - 1; i >= 0; i--) " + push + 
+                                a + "[i]" + post + ";");
+                } else {
+                    out.println(indent + "    " + push + get + post + ";");
+                }
+            }
+            if (found) {
+                out.println(indent + "    break;");
+                out.println(indent + "}");
+            }
+        }
+        out.println(indent + "}");
+    }
+
+    // The names of the node types: the root and the generated nodes
+    private HashSet<String> nodeTypes (Params p) {
+        HashSet<String> nodes = new HashSet<String>();
+        nodes.add(p.root);
+        for (int i = 0; i < units.size(); i++) {
+            Unit n = units.get(i);
+            if (n.kind == U_NODE || n.kind == U_ABSTRACT) nodes.add(n.name);
+        }
+        return nodes;
+    }
+
+    private void generateArena (Text out, Unit u) {
+        Params p = u.params;
+        HashSet<String> nodes = nodeTypes(p);
+        ArrayList<Unit> kinds = new ArrayList<Unit>();
+        for (int i = 0; i < units.size(); i++) {
+            if (units.get(i).kind == U_NODE) kinds.add(units.get(i));
+        }
+        String throwsClause = 
+            (p.exception != null) ? " throws " + p.exception : "";
+        // the kind of each handle, in as few bytes as it fits
+        String tag = (kinds.size() <= Byte.MAX_VALUE) ? "byte" : "short";
+        if (p.pkg != null) 
+            out.println("package " + p.pkg + ";");
+        if (p.modifier != null) 
+            out.print(p.modifier + " ");
+        out.println("class " + u.name + " {");
+        for (int i = 0; i < kinds.size(); i++) {
+            out.println("    public static final int " + 
+                        kindConstant(kinds.get(i).name) + " = " + i + ";");
+        }
+        out.println("    private int size = 0;");
+        out.println("    private " + tag + "[] kinds = new " + tag + "[64];");
+        out.println("    private int[] slots = new int[64];");
+        out.println("    private int[] lists = new int[64];");
+        out.println("    private int listsSize = 0;");
+
+        // columns
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            String pre = lowerFirst(n.name);
+            out.println("    private int " + pre + "Count = 0;");
+            if (n.params.uselineno)
+                out.println("    private int[] " + pre + 
+                            "LineNo = new int[16];");
+            for (int j = 0; j < n.vars.length; j++) {
+                String type = columnType(nodes, n.types[j]);
+                out.println("    private " + type + "[] " + 
+                            column(n, n.vars[j]) + " = new " + 
+                            newArray(type, "16") + ";");
+            }
+        }
+
+        out.println("    public int size () { return size; }");
+        out.println("    public int kind (int h) { return kinds[h]; }");
+        out.println("    public void clear () {");
+        out.println("        size = 0;");
+        out.println("        listsSize = 0;");
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            String pre = lowerFirst(n.name);
+            out.println("        " + pre + "Count = 0;");
+            for (int j = 0; j < n.vars.length; j++) {
+                String type = columnType(nodes, n.types[j]);
+                if (!isPrimitive(type))
+                    out.println("        java.util.Arrays.fill(" + 
+                                column(n, n.vars[j]) + ", null);");
+            }
+        }
+        out.println("    }");
+        out.println("    public void trim () {");
+        out.println("        kinds = java.util.Arrays.copyOf(kinds, size);");
+        out.println("        slots = java.util.Arrays.copyOf(slots, size);");
+        out.println("        lists = java.util.Arrays.copyOf(lists, " + 
+                    "listsSize);");
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            String pre = lowerFirst(n.name);
+            if (n.params.uselineno)
+                out.println("        " + pre + "LineNo = java.util.Arrays" + 
+                            ".copyOf(" + pre + "LineNo, " + pre + "Count);");
+            for (int j = 0; j < n.vars.length; j++) {
+                String col = column(n, n.vars[j]);
+                out.println("        " + col + " = java.util.Arrays.copyOf(" + 
+                            col + ", " + pre + "Count);");
+            }
+        }
+        out.println("    }");
+
+        // constructors and accessors
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            String pre = lowerFirst(n.name);
+            String slot = pre + "Count";
+            out.print("    public int new" + n.name + " (");
+            String sep = "";
+            if (n.params.uselineno) {
+                out.print("int __lineno");
+                sep = ", ";
+            }
+            for (int j = 0; j < n.vars.length; j++) {
+                String type = paramType(nodes, n.types[j]);
+                out.print(sep + type + " " + n.vars[j]);
+                sep = ", ";
             }
             out.println(") {");
-            if (param_uselineno) {
-                out.println("        this.__lineno = __lineno;");
+            out.println("        int __slot = this." + slot + "++;");
+            String first = n.params.uselineno ? pre + "LineNo" 
+                : (n.vars.length > 0) ? column(n, n.vars[0]) : null;
+            if (first != null) {
+                out.println("        if (__slot == this." + first + 
+                            ".length) {");
+                if (n.params.uselineno)
+                    out.println("            this." + pre + "LineNo = " + 
+                                "java.util.Arrays.copyOf(this." + pre + 
+                                "LineNo, __slot * 2 + 16);");
+                for (int j = 0; j < n.vars.length; j++) {
+                    String col = "this." + column(n, n.vars[j]);
+                    out.println("            " + col + " = " + 
+                                "java.util.Arrays.copyOf(" + col + 
+                                ", __slot * 2 + 16);");
+                }
+                out.println("        }");
+            }
+            if (n.params.uselineno)
+                out.println("        this." + pre + 
+                            "LineNo[__slot] = __lineno;");
+            for (int j = 0; j < n.vars.length; j++) {
+                String col = "this." + column(n, n.vars[j]);
+                if (isNodeArray(nodes, n.types[j]))
+                    out.println("        " + col + "[__slot] = list(" + 
+                                n.vars[j] + ");");
+                else
+                    out.println("        " + col + "[__slot] = " + 
+                                n.vars[j] + ";");
+            }
+            out.println("        return handle(" + 
+                        kindConstant(n.name) + ", __slot);");
+            out.println("    }");
+            if (n.params.uselineno)
+                out.println("    public int " + getter(n, "lineNo") + 
+                            " (int h) { return " + pre + 
+                            "LineNo[slots[h]]; }");
+            for (int j = 0; j < n.vars.length; j++) {
+                String col = column(n, n.vars[j]);
+                String get = getter(n, n.vars[j]);
+                if (isNodeArray(nodes, n.types[j])) {
+                    out.println("    public int " + get + "Length (int h) " + 
+                                "{");
+                    out.println("        int off = " + col + "[slots[h]];");
+                    out.println("        return (off < 0) ? -1 : lists[off];");
+                    out.println("    }");
+                    out.println("    public int " + get + " (int h, int i) {");
+                    out.println("        return element(" + col + 
+                                "[slots[h]], i);");
+                    out.println("    }");
+                } else {
+                    out.println("    public " + paramType(nodes, n.types[j]) + 
+                                " " + get + " (int h) { return " + col + 
+                                "[slots[h]]; }");
+                }
+            }
+        }
+
+        // handles
+        out.println("    private int handle (int kind, int slot) {");
+        out.println("        if (size == kinds.length) {");
+        out.println("            kinds = java.util.Arrays.copyOf" + 
+                    "(kinds, size * 2 + 16);");
+        out.println("            slots = java.util.Arrays.copyOf" + 
+                    "(slots, size * 2 + 16);");
+        out.println("        }");
+        out.println("        kinds[size] = (" + tag + ")kind;");
+        out.println("        slots[size] = slot;");
+        out.println("        return size++;");
+        out.println("    }");
+        out.println("    private int list (int[] hs) {");
+        out.println("        if (hs == null) return -1;");
+        out.println("        int off = listsSize;");
+        out.println("        listsSize += 1 + hs.length;");
+        out.println("        if (listsSize > lists.length)");
+        out.println("            lists = java.util.Arrays.copyOf(lists, " + 
+                    "Math.max(lists.length * 2, listsSize + 16));");
+        out.println("        lists[off] = hs.length;");
+        out.println("        System.arraycopy(hs, 0, lists, off + 1, " + 
+                    "hs.length);");
+        out.println("        return off;");
+        out.println("    }");
+        out.println("    // The i-th handle of the list at off, checked " + 
+                    "as an array would be");
+        out.println("    private int element (int off, int i) {");
+        out.println("        if (off < 0) throw new NullPointerException" + 
+                    "(\"The list is null\");");
+        out.println("        if (i < 0 || i >= lists[off])");
+        out.println("            throw new IndexOutOfBoundsException" + 
+                    "(\"Index \" + i + ");
+        out.println("                \" out of bounds for length \" + " + 
+                    "lists[off]);");
+        out.println("        return lists[off + 1 + i];");
+        out.println("    }");
+
+        // visitor
+        out.println("    public static abstract class Visitor {");
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            out.println("        public abstract void visit" + n.name + 
+                        " (" + u.name + " a, int h)" + throwsClause + ";");
+        }
+        out.println("    }");
+        out.println("    public void accept (int h, Visitor v)" + 
+                    throwsClause + " {");
+        out.println("        switch (kinds[h]) {");
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            out.println("        case " + kindConstant(n.name) + ": v.visit" + 
+                        n.name + "(this, h); break;");
+        }
+        out.println("        }");
+        out.println("    }");
+        out.println("}");
+    }
+
+    // The element type of the column for a field of type
+    private static String columnType (HashSet<String> nodes, String type) {
+        if (nodes.contains(type) || isNodeArray(nodes, type)) return "int";
+        return type;
+    }
+
+    // The type of a field as a parameter and a result of the arena
+    private static String paramType (HashSet<String> nodes, String type) {
+        if (nodes.contains(type)) return "int";
+        if (isNodeArray(nodes, type)) return "int[]";
+        return type;
+    }
+
+    private static boolean isNodeArray (HashSet<String> nodes, String type) {
+        return type.endsWith("[]") && 
+            nodes.contains(type.substring(0, type.length() - 2));
+    }
+
+    private static boolean isPrimitive (String type) {
+        return type.equals("int") || type.equals("boolean") ||
+            type.equals("long") || type.equals("double") ||
+            type.equals("float") || type.equals("char") ||
+            type.equals("byte") || type.equals("short");
+    }
+
+    // An array creation expression of length elements of type
+    private static String newArray (String type, String length) {
+        int dims = type.indexOf('[');
+        if (dims < 0) return type + "[" + length + "]";
+        return type.substring(0, dims) + "[" + length + "]" + 
+            type.substring(dims);
+    }
+
+    private static String lowerFirst (String s) {
+        return Character.toLowerCase(s.charAt(0)) + s.substring(1);
+    }
+
+    private static String upperFirst (String s) {
+        return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+    }
+
+    // The arena constant of the node kind name, an underscore at each
+    // word boundary, so that FooBar and Foobar get FOO_BAR and FOOBAR
+    private static String kindConstant (String name) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (i > 0 && Character.isUpperCase(c) && 
+                !Character.isUpperCase(name.charAt(i - 1)) && 
+                name.charAt(i - 1) != '_')
+                sb.append('_');
+            sb.append(Character.toUpperCase(c));
+        }
+        return sb.toString();
+    }
+
+    // The column of the field var of the node n in the arena
+    private static String column (Unit n, String var) {
+        return lowerFirst(n.name) + upperFirst(var);
+    }
+
+    // The getter of the field var of the node n in the arena and the
+    // store
+    private static String getter (Unit n, String var) {
+        return "get" + n.name + upperFirst(var);
+    }
+
+    // The fields and the methods that the arena declares apart from
+    // those for the nodes
+    private static final String[] ARENA_FIELDS = {
+        "size", "kinds", "slots", "lists", "listsSize"
+    };
+    private static final String[] ARENA_METHODS = {
+        "size", "kind", "clear", "trim", "handle", "list", "element", 
+        "accept"
+    };
+
+    // The same for the store
+    private static final String[] STORE_FIELDS = {
+        "SCHEMA", "MAGIC", "HEADER", "SHIFT", "MASK", "chunks", "root"
+    };
+    private static final String[] STORE_METHODS = {
+        "open", "chunks", "limit", "getByte", "getShort", "getChar", 
+        "getInt", "getLong", "getFloat", "getDouble", "string", "root", 
+        "kind", "element", "materialize", "children", "build", "accept", 
+        "write"
+    };
+
+    // Adds an error for each name that the arena or the store u would
+    // declare twice: for two fields of the nodes, such as getABC for
+    // A.bC and AB.c, or for a field and a member of u itself
+    private void checkMembers (Unit u, String what, 
+                               String[] fields, String[] methods) {
+        boolean arena = u.kind == U_ARENA;
+        HashSet<String> nodes = nodeTypes(u.params);
+        ArrayList<Unit> kinds = new ArrayList<Unit>();
+        for (int i = 0; i < units.size(); i++) {
+            Unit n = units.get(i);
+            if (n.kind == U_NODE && (arena || n.tag >= 0)) kinds.add(n);
+        }
+        HashMap<String, String> fs = new HashMap<String, String>();
+        HashMap<String, String> ms = new HashMap<String, String>();
+        for (int i = 0; i < fields.length; i++) {
+            fs.put(fields[i], u.name);
+        }
+        for (int i = 0; i < methods.length; i++) {
+            ms.put(methods[i], u.name);
+        }
+        String w = what + " " + u.name;
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            if (arena) {
+                declare(fs, w, kindConstant(n.name), n.name);
+                declare(fs, w, lowerFirst(n.name) + "Count", n.name);
+                if (n.params.uselineno)
+                    declare(fs, w, lowerFirst(n.name) + "LineNo", n.name);
+                declare(ms, w, "new" + n.name, n.name);
             }
-            for (int i=0; i<fields.length; i++) {
-                String v = fields[i].getVar();
-                out.println("        this." + v + " = " + v + ";");
+            if (n.params.uselineno)
+                declare(ms, w, getter(n, "lineNo"), n.name);
+            for (int j = 0; j < n.vars.length; j++) {
+                String f = n.name + "." + n.vars[j];
+                String type = n.types[j];
+                if (arena) declare(fs, w, column(n, n.vars[j]), f);
+                declare(ms, w, getter(n, n.vars[j]), f);
+                if (arena ? isNodeArray(nodes, type) : type.endsWith("[]"))
+                    declare(ms, w, getter(n, n.vars[j]) + "Length", f);
             }
+        }
+    }
+
+    private void declare (HashMap<String, String> names, String what, 
+                          String name, String owner) {
+        String other = names.put(name, owner);
+        if (other != null)
+            errors.add(new SyntaxError
+                       (what + " would declare " + name + " for both " + 
+                        other + " and " + owner));
+    }
+
+    // The name of the accessor for the field var
+    private static String accessor (Params p, String var) {
+        if (p.records) return var;
+        return "get" + upperFirst(var);
+    }
+
+    // The concrete nodes with kinds, which the store and the codec
+    // can hold
+    private ArrayList<Unit> taggedNodes () {
+        ArrayList<Unit> kinds = new ArrayList<Unit>();
+        for (int i = 0; i < units.size(); i++) {
+            Unit n = units.get(i);
+            if (n.kind == U_NODE && n.tag >= 0) kinds.add(n);
+        }
+        return kinds;
+    }
+
+    // Adds an error for each field that the store or the codec u
+    // cannot hold: those not of node types, primitive types, String,
+    // or arrays of them
+    private void checkFields (Unit u, String what) {
+        HashSet<String> nodes = nodeTypes(u.params);
+        ArrayList<Unit> kinds = taggedNodes();
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            for (int j = 0; j < n.vars.length; j++) {
+                if (storeWidth(nodes, elementType(n.types[j])) == 0)
+                    errors.add(new SyntaxError
+                               (what + " " + u.name + " cannot hold " + 
+                                n.name + "." + n.vars[j] + " of type " + 
+                                n.types[j]));
+            }
+        }
+    }
+
+    private void generateStore (Text out, Unit u) {
+        Params p = u.params;
+        String root = p.root;
+        HashSet<String> nodes = nodeTypes(p);
+        ArrayList<Unit> kinds = taggedNodes();
+        String throwsClause = 
+            (p.exception != null) ? " throws " + p.exception : "";
+        String buffer = "java.nio.ByteBuffer";
+        String ioe = "java.io.IOException";
+        if (p.pkg != null) 
+            out.println("package " + p.pkg + ";");
+        if (p.modifier != null) 
+            out.print(p.modifier + " ");
+        out.println("class " + u.name + " {");
+        out.println("    public static final long SCHEMA = 0x" + 
+                    Long.toHexString(schemaHash(kinds)) + "L;");
+        out.println("    private static final int MAGIC = 0x41535432;");
+        out.println("    private static final int HEADER = 16;");
+        out.println("    private static final int SHIFT = 30;");
+        out.println("    private static final long MASK = (1L << SHIFT) - 1;");
+        out.println("    private final " + buffer + "[] chunks;");
+        out.println("    private final int root;");
+
+        // opening
+        out.println("    public " + u.name + " (" + buffer + " buf) " + 
+                    "throws " + ioe + " {");
+        out.println("        this(chunks(buf), buf.remaining());");
+        out.println("    }");
+        out.println("    private " + u.name + " (" + buffer + 
+                    "[] chunks, long size) throws " + ioe + " {");
+        out.println("        this.chunks = chunks;");
+        out.println("        if (size < HEADER || getInt(0) != MAGIC)");
+        out.println("            throw new " + ioe + "(\"Not a store\");");
+        out.println("        if (getLong(8) != SCHEMA)");
+        out.println("            throw new " + ioe + 
+                    "(\"The store has another schema\");");
+        out.println("        root = getInt(4);");
+        out.println("    }");
+        out.println("    public static " + u.name + 
+                    " open (java.nio.file.Path file) throws " + ioe + " {");
+        out.println("        try (java.nio.channels.FileChannel ch = " + 
+                    "java.nio.channels.FileChannel.open(file)) {");
+        out.println("            long size = ch.size();");
+        out.println("            " + buffer + "[] chunks = new " + buffer + 
+                    "[(int)((size + MASK) >>> SHIFT)];");
+        out.println("            for (int i = 0; i < chunks.length; i++) {");
+        out.println("                long start = (long)i << SHIFT;");
+        out.println("                chunks[i] = ch.map(java.nio.channels" + 
+                    ".FileChannel.MapMode.READ_ONLY, start, " + 
+                    "limit(start, size) - start);");
+        out.println("            }");
+        out.println("            return new " + u.name + "(chunks, size);");
+        out.println("        }");
+        out.println("    }");
+        out.println("    private static " + buffer + "[] chunks (" + 
+                    buffer + " buf) {");
+        out.println("        long size = buf.remaining();");
+        out.println("        " + buffer + "[] chunks = new " + buffer + 
+                    "[(int)((size + MASK) >>> SHIFT)];");
+        out.println("        for (int i = 0; i < chunks.length; i++) {");
+        out.println("            long start = (long)i << SHIFT;");
+        out.println("            " + buffer + " b = buf.duplicate();");
+        out.println("            b.position(buf.position() + (int)start);");
+        out.println("            b.limit(buf.position() + " + 
+                    "(int)limit(start, size));");
+        out.println("            chunks[i] = b.slice();");
+        out.println("        }");
+        out.println("        return chunks;");
+        out.println("    }");
+        out.println("    // A chunk overlaps the next by 8 bytes, so that " + 
+                    "no value is split");
+        out.println("    private static long limit (long start, long size) {");
+        out.println("        return Math.min(size, start + MASK + 9);");
+        out.println("    }");
+
+        // reading
+        String[] prims = { "Short", "Char", "Int", "Long", 
+                           "Float", "Double" };
+        out.println("    private byte getByte (long p) {");
+        out.println("        return chunks[(int)(p >>> SHIFT)]" + 
+                    ".get((int)(p & MASK));");
+        out.println("    }");
+        for (int i = 0; i < prims.length; i++) {
+            out.println("    private " + prims[i].toLowerCase() + 
+                        " get" + prims[i] + " (long p) {");
+            out.println("        return chunks[(int)(p >>> SHIFT)]" + 
+                        ".get" + prims[i] + "((int)(p & MASK));");
             out.println("    }");
+        }
+        out.println("    private String string (int ref) {");
+        out.println("        if (ref < 0) return null;");
+        out.println("        long p = (long)ref << 3;");
+        out.println("        char[] cs = new char[getInt(p)];");
+        out.println("        for (int i = 0; i < cs.length; i++) " + 
+                    "cs[i] = getChar(p + 4 + 2L * i);");
+        out.println("        return new String(cs);");
+        out.println("    }");
+        out.println("    // The position of the i-th element of width bytes " + 
+                    "of the array at ref,");
+        out.println("    // checked as an array would be");
+        out.println("    private long element (int ref, int i, int width) {");
+        out.println("        if (ref < 0) throw new NullPointerException" + 
+                    "(\"The array is null\");");
+        out.println("        long p = (long)ref << 3;");
+        out.println("        int length = getInt(p);");
+        out.println("        if (i < 0 || i >= length)");
+        out.println("            throw new IndexOutOfBoundsException" + 
+                    "(\"Index \" + i + ");
+        out.println("                \" out of bounds for length \" + " + 
+                    "length);");
+        out.println("        return p + 4 + (long)width * i;");
+        out.println("    }");
+        out.println("    public int root () { return root; }");
+        out.println("    public int kind (int ref) " + 
+                    "{ return getInt((long)ref << 3); }");
 
-            // accessor
-            if (param_uselineno) {
-                out.println("    public int getLineNo () { return __lineno; }");
-            }
-            for (int i=0; i<fields.length; i++) {
-                String v = fields[i].getVar();
-                out.print("    public ");
-                fields[i].getType().accept(this);
-                char[]vs = v.toCharArray();
-                vs[0] = Character.toUpperCase(vs[0]);
-                out.println(" get" + new String(vs) + 
-                            " () { return " + v + "; }");
-            }
-            // visitor
-            if (param_visitor != null) {
-                out.print("    public void accept (" + param_visitor + " v)");
-                String vm = "void visit" + name + " (" + name + " n)";
-                if (param_exception != null) {
-                    out.print(" throws " + param_exception);
-                    vm = vm + " throws " + param_exception;
+        // accessors
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            int[] offs = storeOffsets(nodes, n);
+            if (n.params.uselineno)
+                out.println("    public int " + getter(n, "lineNo") + 
+                            " (int ref) " + 
+                            "{ return getInt(((long)ref << 3) + 4); }");
+            for (int j = 0; j < n.vars.length; j++) {
+                String type = n.types[j];
+                String get = getter(n, n.vars[j]);
+                String at = "((long)ref << 3) + " + offs[j];
+                if (type.endsWith("[]")) {
+                    String elem = elementType(type);
+                    String rtype = nodes.contains(elem) ? "int" : elem;
+                    out.println("    public int " + get + "Length (int ref) {");
+                    out.println("        int q = getInt(" + at + ");");
+                    out.println("        return (q < 0) ? -1 : " + 
+                                "getInt((long)q << 3);");
+                    out.println("    }");
+                    out.println("    public " + rtype + " " + get + 
+                                " (int ref, int i) {");
+                    out.println("        long q = element(getInt(" + at + 
+                                "), i, " + storeWidth(nodes, elem) + ");");
+                    out.println("        return " + 
+                                storeGet(nodes, elem, "q") + ";");
+                    out.println("    }");
+                } else {
+                    String rtype = nodes.contains(type) ? "int" : type;
+                    out.println("    public " + rtype + " " + get + 
+                                " (int ref) { return " + 
+                                storeGet(nodes, type, at) + "; }");
                 }
-                out.println(" {");
-                out.println("        v.visit" + name + "(this);");
-                out.println("    }");
-                vmethods.add(vm);
             }
-            out.println("}");
-            out.flush();
+        }
+
+        // materializing
+        out.println("    public " + root + " materialize (int ref) {");
+        out.println("        if (ref < 0) return null;");
+        out.println("        Refs refs = new Refs();");
+        out.println("        refs.add(ref);");
+        out.println("        int[] first = new int[16];");
+        out.println("        for (int i = 0; i < refs.size; i++) {");
+        out.println("            if (i == first.length)");
+        out.println("                first = java.util.Arrays.copyOf" + 
+                    "(first, i * 2);");
+        out.println("            first[i] = refs.size;");
+        out.println("            children(refs.refs[i], refs);");
+        out.println("        }");
+        out.println("        " + root + "[] built = new " + root + 
+                    "[refs.size];");
+        out.println("        for (int i = refs.size - 1; i >= 0; i--)");
+        out.println("            built[i] = build(refs.refs[i], first[i], " + 
+                    "built);");
+        out.println("        return built[0];");
+        out.println("    }");
+        out.println("    private void children (int ref, Refs refs) {");
+        out.println("        long p = (long)ref << 3;");
+        out.println("        switch (getInt(p)) {");
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            int[] offs = storeOffsets(nodes, n);
+            boolean found = false;
+            for (int j = 0; j < n.vars.length; j++) {
+                String type = n.types[j];
+                String elem = elementType(type);
+                if (!nodes.contains(elem)) continue;
+                if (!found) {
+                    out.println("        case " + n.name + ".KIND: {");
+                    found = true;
+                }
+                if (type.endsWith("[]")) {
+                    out.println("            int q" + j + " = getInt(p + " + 
+                                offs[j] + ");");
+                    out.println("            if (q" + j + " >= 0) {");
+                    out.println("                long b = (long)q" + j + 
+                                " << 3;");
+                    out.println("                for (int i = 0, len = " + 
+                                "getInt(b); i < len; i++)");
+                    out.println("                    refs.add(getInt(b + 4 + " + 
+                                "4L * i));");
+                    out.println("            }");
+                } else {
+                    out.println("            refs.add(getInt(p + " + offs[j] + 
+                                "));");
+                }
+            }
+            if (found) {
+                out.println("            break;");
+                out.println("        }");
+            }
+        }
+        out.println("        }");
+        out.println("    }");
+        out.println("    private " + root + " build (int ref, int k, " + 
+                    root + "[] built) {");
+        out.println("        long p = (long)ref << 3;");
+        out.println("        switch (getInt(p)) {");
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            int[] offs = storeOffsets(nodes, n);
+            out.println("        case " + n.name + ".KIND: {");
+            StringBuilder args = new StringBuilder();
+            if (n.params.uselineno) args.append("getInt(p + 4)");
+            for (int j = 0; j < n.vars.length; j++) {
+                String type = n.types[j];
+                String elem = elementType(type);
+                String f = "f" + j;
+                String at = "p + " + offs[j];
+                if (args.length() > 0) args.append(", ");
+                args.append(f);
+                if (type.endsWith("[]")) {
+                    String w = storeWidth(nodes, elem) + "L";
+                    out.println("            " + type + " " + f + " = null;");
+                    out.println("            int q" + j + " = getInt(" + at + 
+                                ");");
+                    out.println("            if (q" + j + " >= 0) {");
+                    out.println("                long b = (long)q" + j + 
+                                " << 3;");
+                    out.println("                " + f + " = new " + 
+                                newArray(elem, "getInt(b)") + ";");
+                    out.println("                for (int i = 0; i < " + f + 
+                                ".length; i++)");
+                    if (nodes.contains(elem))
+                        out.println("                    if (getInt(b + 4 + " + 
+                                    w + " * i) >= 0) " + f + "[i] = " + 
+                                    cast(root, elem) + "built[k++];");
+                    else
+                        out.println("                    " + f + "[i] = " + 
+                                    storeGet(nodes, elem, "b + 4 + " + w + 
+                                             " * i") + ";");
+                    out.println("            }");
+                } else if (nodes.contains(type)) {
+                    out.println("            " + type + " " + f + " = (getInt(" + 
+                                at + ") < 0) ? null : " + cast(root, type) + 
+                                "built[k++];");
+                } else {
+                    out.println("            " + type + " " + f + " = " + 
+                                storeGet(nodes, type, at) + ";");
+                }
+            }
+            out.println("            return new " + n.name + "(" + args + ");");
+            out.println("        }");
+        }
+        out.println("        default: throw new IllegalStateException" + 
+                    "(\"Not a node at \" + ref);");
+        out.println("        }");
+        out.println("    }");
+        out.println("    private static class Refs {");
+        out.println("        int[] refs = new int[16];");
+        out.println("        int size = 0;");
+        out.println("        void add (int ref) {");
+        out.println("            if (ref < 0) return;");
+        out.println("            if (size == refs.length)");
+        out.println("                refs = java.util.Arrays.copyOf" + 
+                    "(refs, size * 2);");
+        out.println("            refs[size++] = ref;");
+        out.println("        }");
+        out.println("    }");
 
-        } catch (IOException e) {}
-        finally {
-            if (!debug && out != null) out.close();
+        // visitor
+        out.println("    public static abstract class Visitor {");
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            out.println("        public abstract void visit" + n.name + 
+                        " (" + u.name + " s, int ref)" + throwsClause + ";");
+        }
+        out.println("    }");
+        out.println("    public void accept (int ref, Visitor v)" + 
+                    throwsClause + " {");
+        out.println("        switch (kind(ref)) {");
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            out.println("        case " + n.name + ".KIND: v.visit" + 
+                        n.name + "(this, ref); break;");
         }
+        out.println("        }");
+        out.println("    }");
+
+        // writing
+        out.println("    public static void write (" + root + 
+                    " n, java.nio.file.Path file) throws " + ioe + " {");
+        out.println("        try (java.io.OutputStream out = " + 
+                    "java.nio.file.Files.newOutputStream(file)) {");
+        out.println("            write(n, out);");
+        out.println("        }");
+        out.println("    }");
+        out.println("    public static void write (" + root + 
+                    " n, java.io.OutputStream out) throws " + ioe + " {");
+        out.println("        new Writer(out).write(n);");
+        out.println("    }");
+        generateStoreWriter(out, u, nodes, kinds);
+        out.println("}");
     }
 
-    public void visitANodeDefAST (ANodeDefAST n) {
-        String name = n.getName();
-        if (supertbl.containsKey(name))
-            System.err.println("Warning: redefinition of " + name);
-        supertbl.put(name, supername);
+    // Generates the class that writes a tree breadth first, placing
+    // each node when its parent is written so that the parent can
+    // refer to it
+    private void generateStoreWriter (Text out, Unit u, HashSet<String> nodes,
+                                      ArrayList<Unit> kinds) {
+        String root = u.params.root;
+        String ioe = "java.io.IOException";
+        out.println("    private static class Writer {");
+        out.println("        private final java.io.OutputStream out;");
+        out.println("        private final byte[] buf = new byte[1 << 16];");
+        out.println("        private int n = 0;");
+        out.println("        private long pos = 0;");
+        out.println("        private long next = HEADER;");
+        out.println("        private final java.util.ArrayDeque<" + root + 
+                    "> queue = new java.util.ArrayDeque<" + root + ">();");
+        out.println("        Writer (java.io.OutputStream out) " + 
+                    "{ this.out = out; }");
+        out.println("        void write (" + root + " x) throws " + ioe + " {");
+        out.println("            int r = enqueue(x);");
+        out.println("            putInt(MAGIC);");
+        out.println("            putInt(r);");
+        out.println("            putLong(SCHEMA);");
+        out.println("            while ((x = queue.poll()) != null) node(x);");
+        out.println("            out.write(buf, 0, n);");
+        out.println("            out.flush();");
+        out.println("        }");
+        out.println("        private int enqueue (" + root + " x) throws " + 
+                    ioe + " {");
+        out.println("            if (x == null) return -1;");
+        out.println("            int r = ref(next);");
+        out.println("            next += size(x);");
+        out.println("            queue.add(x);");
+        out.println("            return r;");
+        out.println("        }");
+        out.println("        private static int ref (long p) throws " + 
+                    ioe + " {");
+        out.println("            if (p >= 1L << 34)");
+        out.println("                throw new " + ioe + 
+                    "(\"The store is full\");");
+        out.println("            return (int)(p >>> 3);");
+        out.println("        }");
+        out.println("        private static long align (long s) " + 
+                    "{ return (s + 7) & ~7L; }");
+
+        // sizes
+        out.println("        private static long size (" + root + " x) {");
+        out.println("            switch (x.kind()) {");
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            int[] offs = storeOffsets(nodes, n);
+            long fixed = offs[n.vars.length];
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < n.vars.length; j++) {
+                String type = n.types[j];
+                String elem = elementType(type);
+                String get = "y." + accessor(n.params, n.vars[j]) + "()";
+                if (isString(type)) {
+                    sb.append(" + stringSize(" + get + ")");
+                } else if (type.endsWith("[]") && isString(elem)) {
+                    sb.append(" + stringsSize(" + get + ")");
+                } else if (type.endsWith("[]")) {
+                    sb.append(" + arraySize(" + get + ", " + 
+                              storeWidth(nodes, elem) + ")");
+                }
+            }
+            if (sb.length() == 0) {
+                out.println("            case " + n.name + ".KIND: return " + 
+                            fixed + ";");
+            } else {
+                out.println("            case " + n.name + ".KIND: {");
+                out.println("                " + n.name + " y = (" + n.name + 
+                            ")x;");
+                out.println("                return " + fixed + sb + ";");
+                out.println("            }");
+            }
+        }
+        out.println("            default: throw new IllegalArgumentException" + 
+                    "(\"Not a stored node: \" + x);");
+        out.println("            }");
+        out.println("        }");
+        out.println("        private static long stringSize (String s) {");
+        out.println("            return (s == null) ? 0 : " + 
+                    "align(4 + 2L * s.length());");
+        out.println("        }");
+        out.println("        private static long stringsSize (String[] a) {");
+        out.println("            if (a == null) return 0;");
+        out.println("            long s = align(4 + 4L * a.length);");
+        out.println("            for (int i = 0; i < a.length; i++) " + 
+                    "s += stringSize(a[i]);");
+        out.println("            return s;");
+        out.println("        }");
+
+        // nodes
+        out.println("        private void node (" + root + " x) throws " + 
+                    ioe + " {");
+        out.println("            switch (x.kind()) {");
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            int[] offs = storeOffsets(nodes, n);
+            out.println("            case " + n.name + ".KIND: {");
+            out.println("                " + n.name + " y = (" + n.name + 
+                        ")x;");
+            out.println("                long b = pos + " + 
+                        offs[n.vars.length] + ";");
+            out.println("                putInt(" + n.name + ".KIND);");
+            if (n.params.uselineno)
+                out.println("                putInt(y.getLineNo());");
+            StringBuilder blocks = new StringBuilder();
+            for (int j = 0; j < n.vars.length; j++) {
+                String type = n.types[j];
+                String elem = elementType(type);
+                String get = "y." + accessor(n.params, n.vars[j]) + "()";
+                String f = "f" + j;
+                String in = "                ";
+                if (isString(type) || type.endsWith("[]")) {
+                    out.println(in + type + " " + f + " = " + get + ";");
+                    out.println(in + "putInt((" + f + " == null) ? -1 : " + 
+                                "ref(b));");
+                    if (isString(type)) {
+                        out.println(in + "b += stringSize(" + f + ");");
+                        blocks.append(in + "putString(" + f + ");" + Text.nl);
+                    } else if (isString(elem)) {
+                        out.println(in + "b += stringsSize(" + f + ");");
+                        blocks.append(in + "putStrings(" + f + ");" + Text.nl);
+                    } else {
+                        int w = storeWidth(nodes, elem);
+                        out.println(in + "b += arraySize(" + f + ", " + 
+                                    w + ");");
+                        blocks.append(in + "if (" + f + " != null) {" + 
+                                      Text.nl);
+                        blocks.append(in + "    putInt(" + f + ".length);" + 
+                                      Text.nl);
+                        blocks.append(in + "    for (int i = 0; i < " + f + 
+                                      ".length; i++) " + 
+                                      storePut(nodes, elem, f + "[i]") + 
+                                      Text.nl);
+                        blocks.append(in + "    pad();" + Text.nl);
+                        blocks.append(in + "}" + Text.nl);
+                    }
+                } else {
+                    out.println(in + storePut(nodes, type, get));
+                }
+            }
+            out.println("                pad();");
+            out.print(blocks.toString());
+            out.println("                break;");
+            out.println("            }");
+        }
+        out.println("            }");
+        out.println("        }");
+        String[] arrays = { "boolean", "byte", "char", "short", "int", 
+                            "long", "float", "double", root };
+        for (int i = 0; i < arrays.length; i++) {
+            out.println("        private static long arraySize (" + 
+                        arrays[i] + "[] a, int w) {");
+            out.println("            return (a == null) ? 0 : " + 
+                        "align(4 + (long)w * a.length);");
+            out.println("        }");
+        }
+        out.println("        private void putString (String s) throws " + 
+                    ioe + " {");
+        out.println("            if (s == null) return;");
+        out.println("            putInt(s.length());");
+        out.println("            for (int i = 0; i < s.length(); i++) " + 
+                    "putChar(s.charAt(i));");
+        out.println("            pad();");
+        out.println("        }");
+        out.println("        private void putStrings (String[] a) throws " + 
+                    ioe + " {");
+        out.println("            if (a == null) return;");
+        out.println("            long b = pos + align(4 + 4L * a.length);");
+        out.println("            putInt(a.length);");
+        out.println("            for (int i = 0; i < a.length; i++) {");
+        out.println("                putInt((a[i] == null) ? -1 : ref(b));");
+        out.println("                b += stringSize(a[i]);");
+        out.println("            }");
+        out.println("            pad();");
+        out.println("            for (int i = 0; i < a.length; i++) " + 
+                    "putString(a[i]);");
+        out.println("        }");
+
+        // bytes
+        out.println("        private void room (int k) throws " + ioe + " {");
+        out.println("            if (n + k > buf.length) {");
+        out.println("                out.write(buf, 0, n);");
+        out.println("                n = 0;");
+        out.println("            }");
+        out.println("            pos += k;");
+        out.println("        }");
+        out.println("        private void putByte (int v) throws " + 
+                    ioe + " {");
+        out.println("            room(1);");
+        out.println("            buf[n++] = (byte)v;");
+        out.println("        }");
+        out.println("        private void putShort (int v) throws " + 
+                    ioe + " {");
+        out.println("            room(2);");
+        out.println("            buf[n++] = (byte)(v >>> 8);");
+        out.println("            buf[n++] = (byte)v;");
+        out.println("        }");
+        out.println("        private void putChar (int v) throws " + 
+                    ioe + " { putShort(v); }");
+        out.println("        private void putInt (int v) throws " + 
+                    ioe + " {");
+        out.println("            room(4);");
+        out.println("            buf[n++] = (byte)(v >>> 24);");
+        out.println("            buf[n++] = (byte)(v >>> 16);");
+        out.println("            buf[n++] = (byte)(v >>> 8);");
+        out.println("            buf[n++] = (byte)v;");
+        out.println("        }");
+        out.println("        private void putLong (long v) throws " + 
+                    ioe + " {");
+        out.println("            putInt((int)(v >>> 32));");
+        out.println("            putInt((int)v);");
+        out.println("        }");
+        out.println("        private void putFloat (float v) throws " + 
+                    ioe + " { putInt(Float.floatToRawIntBits(v)); }");
+        out.println("        private void putDouble (double v) throws " + 
+                    ioe + " { putLong(Double.doubleToRawLongBits(v)); }");
+        out.println("        private void pad () throws " + ioe + " {");
+        out.println("            while ((pos & 7) != 0) putByte(0);");
+        out.println("        }");
+        out.println("    }");
     }
 
-    public void visitFieldDefAST (FieldDefAST n) {}
+    // A cast from the root to type, if it is another type
+    private static String cast (String root, String type) {
+        return type.equals(root) ? "" : "(" + type + ")";
+    }
 
-    public void visitPrimTypeAST (PrimTypeAST n) {
-        String tname = n.getName();
-        if (aliases.containsKey(tname)) {
-            ((TypeAST)aliases.get(tname)).accept(this);
+    // The offsets of the fields of n in its record in the store,
+    // after its kind and its line number, and then the size of the
+    // record rounded up to 8
+    private static int[] storeOffsets (HashSet<String> nodes, Unit n) {
+        int[] offs = new int[n.vars.length + 1];
+        int off = n.params.uselineno ? 8 : 4;
+        for (int j = 0; j < n.vars.length; j++) {
+            offs[j] = off;
+            String type = n.types[j];
+            off += type.endsWith("[]") ? 4 : storeWidth(nodes, type);
         }
-        else
-            out.print(tname);
+        offs[n.vars.length] = (off + 7) & ~7;
+        return offs;
     }
 
-    public void visitArrayTypeAST (ArrayTypeAST n) {
-        n.getElem().accept(this);
-        out.print("[]");
+    // The bytes a value of type takes in the store, the strings and the
+    // nodes being references, or 0 if the store cannot hold it
+    private static int storeWidth (HashSet<String> nodes, String type) {
+        if (type.equals("boolean") || type.equals("byte")) return 1;
+        if (type.equals("char") || type.equals("short")) return 2;
+        if (type.equals("int") || type.equals("float")) return 4;
+        if (type.equals("long") || type.equals("double")) return 8;
+        if (isString(type) || nodes.contains(type)) return 4;
+        return 0;
+    }
+
+    private static boolean isString (String type) {
+        return type.equals("String") || type.equals("java.lang.String");
+    }
+
+    private static String elementType (String type) {
+        if (!type.endsWith("[]")) return type;
+        return type.substring(0, type.length() - 2);
+    }
+
+    // An expression that reads a value of type at pos in the store
+    private static String storeGet (HashSet<String> nodes, String type, 
+                                    String pos) {
+        if (type.equals("boolean")) return "(getByte(" + pos + ") != 0)";
+        if (isString(type)) return "string(getInt(" + pos + "))";
+        if (nodes.contains(type)) return "getInt(" + pos + ")";
+        return "get" + upperFirst(type) + "(" + pos + ")";
+    }
+
+    // A statement that writes value of type, other than String, into
+    // the store
+    private static String storePut (HashSet<String> nodes, String type, 
+                                    String value) {
+        if (type.equals("boolean")) return "putByte(" + value + " ? 1 : 0);";
+        if (nodes.contains(type)) return "putInt(enqueue(" + value + "));";
+        return "put" + upperFirst(type) + "(" + value + ");";
+    }
+
+    // A hash of the layout of the store: the kinds, the names and the
+    // fields of the nodes
+    private static long schemaHash (ArrayList<Unit> kinds) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            sb.append(n.tag).append(' ').append(n.name);
+            if (n.params.uselineno) sb.append(" #");
+            for (int j = 0; j < n.vars.length; j++) {
+                sb.append(' ').append(n.types[j]).append(' ')
+                    .append(n.vars[j]);
+            }
+            sb.append(';');
+        }
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < sb.length(); i++) {
+            h = (h ^ sb.charAt(i)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // The name of the table the interned nodes are kept in
+    private static String internTable (Params p) {
+        String root = p.root;
+        return root.substring(root.lastIndexOf('.') + 1) + "InternTable";
+    }
+
+    // Generates the factory of the node u if it is interned
+    private void generateInterning (Text out, Unit u) {
+        Params p = u.params;
+        if (!p.intern) return;
+        HashSet<String> nodes = nodeTypes(p);
+        String table = internTable(p) + "<" + u.name + ">";
+        StringBuilder same = new StringBuilder();
+        StringBuilder args = new StringBuilder();
+        out.print("    public static " + u.name + " of (");
+        if (p.uselineno) {
+            out.print("int __lineno");
+            same.append("__a.__lineno == __b.__lineno");
+            args.append("__lineno");
+        }
+        for (int i = 0; i < u.vars.length; i++) {
+            String v = u.vars[i];
+            if (args.length() > 0) {
+                out.print(", ");
+                same.append(" && ");
+                args.append(", ");
+            }
+            out.print(u.types[i] + " " + v);
+            same.append(internSame(p, nodes, u.types[i], 
+                                   "__a." + v, "__b." + v));
+            args.append(v);
+        }
+        out.println(") {");
+        out.println("        int __h = " + (p.uselineno ? "__lineno" : "0") + ";");
+        for (int i = 0; i < u.vars.length; i++) {
+            out.println("        __h = 31 * __h + " + 
+                        internHash(p, nodes, u.types[i], u.vars[i]) + ";");
+        }
+        out.println("        return __interned.intern(new " + u.name + 
+                    "(" + args + "), __h);");
+        out.println("    }");
+        out.println("    private static final " + table + " __interned =");
+        out.println("        new " + table + "((__a, __b) -> " + 
+                    (same.length() > 0 ? same.toString() : "true") + ");");
+    }
+
+    // An expression whether the fields x and y of type are the same for
+    // interning
+    private static String internSame (Params p, HashSet<String> nodes, 
+                                      String type, String x, String y) {
+        if (nodes.contains(type)) return x + " == " + y;
+        if (isNodeArray(nodes, type))
+            return internTable(p) + ".same(" + x + ", " + y + ")";
+        return fieldEquals(type, x, y);
+    }
+
+    // An expression of the hash of the field x of type for interning
+    private static String internHash (Params p, HashSet<String> nodes, 
+                                      String type, String x) {
+        if (nodes.contains(type)) return "System.identityHashCode(" + x + ")";
+        if (isNodeArray(nodes, type)) 
+            return internTable(p) + ".hash(" + x + ")";
+        return fieldHash(type, x);
+    }
+
+    // Generates equals and hashCode of the node u if it has them
+    private void generateEquals (Text out, Unit u) {
+        Params p = u.params;
+        if (!p.equality) return;
+        out.println("    public boolean equals (Object o) {");
+        out.println("        return " + equality(p) + ".equal(this, o);");
+        out.println("    }");
+        out.println("    public int hashCode () {");
+        if (p.records) {
+            out.println("        return " + equality(p) + ".hash(this);");
+        } else {
+            out.println("        int h = __hash;");
+            out.println("        return (h != 0) ? h : " + equality(p) + 
+                        ".hash(this);");
+        }
+        out.println("    }");
+    }
+
+    // The name of the class that compares and hashes the nodes
+    private static String equality (Params p) {
+        String root = p.root;
+        return root.substring(root.lastIndexOf('.') + 1) + "Equality";
+    }
+
+    // Generates the class that compares and hashes the nodes with
+    // equality.  It goes by recursion down to DEPTH and on with stacks
+    // of its own below, so that the depth of a tree is not bounded by
+    // that of the Java stack, while the usual trees are not slowed
+    // down by the stacks.  A node class without equality is compared
+    // by its own equals.
+    private void generateEquality (Text out, Unit u) {
+        Params p = u.params;
+        HashSet<String> nodes = nodeTypes(p);
+        ArrayList<Unit> kinds = new ArrayList<Unit>();
+        for (int i = 0; i < units.size(); i++) {
+            Unit n = units.get(i);
+            if (n.kind == U_NODE && n.params.equality) kinds.add(n);
+        }
+        if (p.pkg != null) 
+            out.println("package " + p.pkg + ";");
+        if (p.modifier != null) 
+            out.print(p.modifier + " ");
+        out.println("final class " + u.name + " {");
+        out.println("    // The index of each class with equality in " + 
+                    "the switches below, -1 for");
+        out.println("    // the others");
+        out.println("    private static final ClassValue<Integer> " + 
+                    "INDEX = new ClassValue<Integer>() {");
+        out.println("        protected Integer computeValue (Class<?> c) {");
+        for (int i = 0; i < kinds.size(); i++) {
+            out.println("            if (" + kinds.get(i).name + 
+                        ".class.isAssignableFrom(c)) return " + i + ";");
+        }
+        out.println("            return -1;");
+        out.println("        }");
+        out.println("    };");
+        out.println("    private static final int DEPTH = 512;");
+        out.println("    private Object[] nodes = new Object[16];");
+        out.println("    private int[] marks = new int[16];");
+        out.println("    private int sp = 0;");
+        out.println("    private int[] values = new int[16];");
+        out.println("    private int vp = 0;");
+        out.println("    private " + u.name + " () {}");
+        out.println("    static boolean equal (Object a, Object b) {");
+        out.println("        return same(a, b, 0);");
+        out.println("    }");
+        out.println("    static int hash (Object n) {");
+        out.println("        return hash(n, 0);");
+        out.println("    }");
+
+        // comparing by recursion
+        out.println("    private static boolean same (Object x, Object y, " + 
+                    "int depth) {");
+        out.println("        if (x == y) return true;");
+        out.println("        if (x == null || y == null || " + 
+                    "x.getClass() != y.getClass())");
+        out.println("            return false;");
+        out.println("        if (depth == DEPTH) return new " + u.name + 
+                    "().compare(x, y);");
+        out.println("        int d = depth + 1;");
+        out.println("        switch (INDEX.get(x.getClass())) {");
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            String in = "            ";
+            out.println("        case " + i + ": {");
+            if (n.vars.length == 0 && n.params.records) {
+                out.println(in + "return true;");
+                out.println("        }");
+                continue;
+            }
+            out.println(in + n.name + " p = (" + n.name + ")x, " + 
+                        "q = (" + n.name + ")y;");
+            out.print(in + "return ");
+            String sep = "";
+            if (!n.params.records) {
+                out.print("p.hashCode() == q.hashCode()");
+                sep = " &&" + Text.nl + in + "    ";
+            }
+            for (int j = 0; j < n.vars.length; j++) {
+                String type = n.types[j];
+                String get = accessor(n.params, n.vars[j]) + "()";
+                out.print(sep);
+                if (nodes.contains(type))
+                    out.print("same(p." + get + ", q." + get + ", d)");
+                else if (isNodeArray(nodes, type))
+                    out.print("sameAll(p." + get + ", q." + get + ", d)");
+                else
+                    out.print(fieldEquals(type, "p." + get, "q." + get));
+                sep = " &&" + Text.nl + in + "    ";
+            }
+            out.println(";");
+            out.println("        }");
+        }
+        out.println("        default:");
+        out.println("            return x.equals(y);");
+        out.println("        }");
+        out.println("    }");
+        out.println("    private static boolean sameAll (Object[] a, " + 
+                    "Object[] b, int depth) {");
+        out.println("        if (a == b) return true;");
+        out.println("        if (a == null || b == null || " + 
+                    "a.length != b.length) return false;");
+        out.println("        for (int i = 0; i < a.length; i++)");
+        out.println("            if (!same(a[i], b[i], depth)) return false;");
+        out.println("        return true;");
+        out.println("    }");
+
+        // hashing by recursion
+        out.println("    private static int hash (Object n, int depth) {");
+        out.println("        int k = (n == null) ? -1 : " + 
+                    "INDEX.get(n.getClass());");
+        out.println("        if (k < 0) return java.util.Objects.hashCode(n);");
+        out.println("        if (depth == DEPTH) return new " + u.name + 
+                    "().walk(n);");
+        out.println("        int d = depth + 1;");
+        out.println("        int h = 0;");
+        out.println("        switch (k) {");
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            String in = "            ";
+            out.println("        case " + i + ": {");
+            out.println(in + n.name + " x = (" + n.name + ")n;");
+            if (!n.params.records)
+                out.println(in + "if (x.__hash != 0) return x.__hash;");
+            out.println(in + "h = " + n.name.hashCode() + ";");
+            for (int j = 0; j < n.vars.length; j++) {
+                String type = n.types[j];
+                String get = "x." + accessor(n.params, n.vars[j]) + "()";
+                if (nodes.contains(type))
+                    out.println(in + "h = 31 * h + hash(" + get + ", d);");
+                else if (isNodeArray(nodes, type))
+                    out.println(in + "h = 31 * h + hashAll(" + get + 
+                                ", d);");
+                else
+                    out.println(in + "h = 31 * h + " + fieldHash(type, get) + 
+                                ";");
+            }
+            if (!n.params.records)
+                out.println(in + "x.__hash = h;");
+            out.println(in + "break;");
+            out.println("        }");
+        }
+        out.println("        }");
+        out.println("        return h;");
+        out.println("    }");
+        out.println("    // As Arrays.hashCode");
+        out.println("    private static int hashAll (Object[] a, " + 
+                    "int depth) {");
+        out.println("        if (a == null) return 0;");
+        out.println("        int h = 1;");
+        out.println("        for (int i = 0; i < a.length; i++) " + 
+                    "h = 31 * h + hash(a[i], depth);");
+        out.println("        return h;");
+        out.println("    }");
+
+        // comparing below DEPTH: the pairs of nodes still to compare on
+        // a stack
+        out.println("    private boolean compare (Object a, Object b) {");
+        out.println("        pair(a, b);");
+        out.println("        while (sp > 0) {");
+        out.println("            Object y = nodes[--sp];");
+        out.println("            Object x = nodes[--sp];");
+        out.println("            if (x == y) continue;");
+        out.println("            if (x == null || y == null || " + 
+                    "x.getClass() != y.getClass())");
+        out.println("                return false;");
+        out.println("            switch (INDEX.get(x.getClass())) {");
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            String in = "                ";
+            out.println("            case " + i + ": {");
+            if (n.vars.length > 0 || !n.params.records)
+                out.println(in + n.name + " p = (" + n.name + ")x, " + 
+                            "q = (" + n.name + ")y;");
+            // the cached hashes first, a record would walk its subtree
+            if (!n.params.records)
+                out.println(in + "if (p.hashCode() != q.hashCode()) " + 
+                            "return false;");
+            for (int j = 0; j < n.vars.length; j++) {
+                String type = n.types[j];
+                String get = accessor(n.params, n.vars[j]) + "()";
+                if (nodes.contains(type))
+                    out.println(in + "pair(p." + get + ", q." + get + ");");
+                else if (isNodeArray(nodes, type))
+                    out.println(in + "if (!pairs(p." + get + ", q." + get + 
+                                ")) return false;");
+                else
+                    out.println(in + "if (!(" + 
+                                fieldEquals(type, "p." + get, "q." + get) + 
+                                ")) return false;");
+            }
+            out.println(in + "break;");
+            out.println("            }");
+        }
+        out.println("            default:");
+        out.println("                if (!x.equals(y)) return false;");
+        out.println("            }");
+        out.println("        }");
+        out.println("        return true;");
+        out.println("    }");
+        out.println("    private void pair (Object x, Object y) {");
+        out.println("        push(x, -1);");
+        out.println("        push(y, -1);");
+        out.println("    }");
+        out.println("    // Pairs the elements of the arrays, which " + 
+                    "differ if their lengths do");
+        out.println("    private boolean pairs (Object[] a, Object[] b) {");
+        out.println("        if (a == b) return true;");
+        out.println("        if (a == null || b == null || " + 
+                    "a.length != b.length) return false;");
+        out.println("        for (int i = a.length - 1; i >= 0; i--) " + 
+                    "pair(a[i], b[i]);");
+        out.println("        return true;");
+        out.println("    }");
+
+        // hashing below DEPTH: the nodes in post-order, each entered
+        // with a mark of -1 and left with the height of the values of
+        // its children
+        out.println("    private int walk (Object n) {");
+        out.println("        push(n, -1);");
+        out.println("        while (sp > 0) {");
+        out.println("            n = nodes[--sp];");
+        out.println("            nodes[sp] = null;");
+        out.println("            int mark = marks[sp];");
+        out.println("            int k = (n == null) ? -1 : " + 
+                    "INDEX.get(n.getClass());");
+        out.println("            if (k < 0) {");
+        out.println("                value(java.util.Objects.hashCode(n));");
+        out.println("                continue;");
+        out.println("            }");
+        out.println("            if (mark < 0) {");
+        out.println("                switch (k) {");
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            String in = "                    ";
+            out.println("                case " + i + ": {");
+            out.println(in + n.name + " x = (" + n.name + ")n;");
+            if (!n.params.records) {
+                out.println(in + "if (x.__hash != 0) {");
+                out.println(in + "    value(x.__hash);");
+                out.println(in + "    continue;");
+                out.println(in + "}");
+            }
+            out.println(in + "push(x, vp);");
+            for (int j = n.vars.length - 1; j >= 0; j--) {
+                String type = n.types[j];
+                String get = "x." + accessor(n.params, n.vars[j]) + "()";
+                if (nodes.contains(type)) {
+                    out.println(in + "push(" + get + ", -1);");
+                } else if (isNodeArray(nodes, type)) {
+                    String a = "a" + j;
+                    out.println(in + "Object[] " + a + " = " + get + ";");
+                    out.println(in + "if (" + a + " != null)");
+                    out.println(in + "    for (int i = " + a + 
+                                ".length - 1; i >= 0; i--) push(" + a + 
+                                "[i], -1);");
+                }
+            }
+            out.println(in + "break;");
+            out.println("                }");
+        }
+        out.println("                }");
+        out.println("                continue;");
+        out.println("            }");
+        out.println("            int h = 0;");
+        out.println("            int i = mark;");
+        out.println("            switch (k) {");
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            String in = "                ";
+            out.println("            case " + i + ": {");
+            out.println(in + n.name + " x = (" + n.name + ")n;");
+            out.println(in + "h = " + n.name.hashCode() + ";");
+            for (int j = 0; j < n.vars.length; j++) {
+                String type = n.types[j];
+                String get = "x." + accessor(n.params, n.vars[j]) + "()";
+                if (nodes.contains(type)) {
+                    out.println(in + "h = 31 * h + values[i++];");
+                } else if (isNodeArray(nodes, type)) {
+                    // as Arrays.hashCode
+                    String a = "a" + j;
+                    String r = "r" + j;
+                    out.println(in + "Object[] " + a + " = " + get + ";");
+                    out.println(in + "int " + r + " = 0;");
+                    out.println(in + "if (" + a + " != null) {");
+                    out.println(in + "    " + r + " = 1;");
+                    out.println(in + "    for (int j = 0; j < " + a + 
+                                ".length; j++) " + r + " = 31 * " + r + 
+                                " + values[i++];");
+                    out.println(in + "}");
+                    out.println(in + "h = 31 * h + " + r + ";");
+                } else {
+                    out.println(in + "h = 31 * h + " + fieldHash(type, get) + 
+                                ";");
+                }
+            }
+            if (!n.params.records)
+                out.println(in + "x.__hash = h;");
+            out.println(in + "break;");
+            out.println("            }");
+        }
+        out.println("            }");
+        out.println("            vp = mark;");
+        out.println("            value(h);");
+        out.println("        }");
+        out.println("        return values[--vp];");
+        out.println("    }");
+        out.println("    private void push (Object n, int mark) {");
+        out.println("        if (sp == nodes.length) {");
+        out.println("            nodes = java.util.Arrays.copyOf" + 
+                    "(nodes, sp * 2);");
+        out.println("            marks = java.util.Arrays.copyOf" + 
+                    "(marks, sp * 2);");
+        out.println("        }");
+        out.println("        nodes[sp] = n;");
+        out.println("        marks[sp++] = mark;");
+        out.println("    }");
+        out.println("    private void value (int h) {");
+        out.println("        if (vp == values.length)");
+        out.println("            values = java.util.Arrays.copyOf" + 
+                    "(values, vp * 2);");
+        out.println("        values[vp++] = h;");
+        out.println("    }");
+        out.println("}");
+    }
+
+    // An expression whether the fields x and y of type are equal, the
+    // arrays by their elements, and the nested arrays deeply
+    private static String fieldEquals (String type, String x, String y) {
+        if (type.equals("float"))
+            return "Float.floatToIntBits(" + x + ") == " + 
+                "Float.floatToIntBits(" + y + ")";
+        if (type.equals("double"))
+            return "Double.doubleToLongBits(" + x + ") == " + 
+                "Double.doubleToLongBits(" + y + ")";
+        if (isPrimitive(type)) return x + " == " + y;
+        if (type.endsWith("[][]"))
+            return "java.util.Arrays.deepEquals(" + x + ", " + y + ")";
+        if (type.endsWith("[]"))
+            return "java.util.Arrays.equals(" + x + ", " + y + ")";
+        return "java.util.Objects.equals(" + x + ", " + y + ")";
+    }
+
+    // An expression of the hash of the field x of type, consistent with
+    // fieldEquals
+    private static String fieldHash (String type, String x) {
+        if (isPrimitive(type)) 
+            return upperFirst(type.equals("int") ? "integer" : 
+                              type.equals("char") ? "character" : type) + 
+                ".hashCode(" + x + ")";
+        if (type.endsWith("[][]"))
+            return "java.util.Arrays.deepHashCode(" + x + ")";
+        if (type.endsWith("[]")) return "java.util.Arrays.hashCode(" + x + ")";
+        return "java.util.Objects.hashCode(" + x + ")";
+    }
+
+    private void generateInternTable (Text out, Unit u) {
+        Params p = u.params;
+        String ref = "java.lang.ref";
+        if (p.pkg != null) 
+            out.println("package " + p.pkg + ";");
+        if (p.modifier != null) 
+            out.print(p.modifier + " ");
+        out.println("class " + u.name + "<T> {");
+        out.println("    private static final int STRIPES = 16;");
+        out.println("    private final java.util.function.BiPredicate" + 
+                    "<T, T> same;");
+        out.println("    private final Stripe[] stripes = " + 
+                    "new Stripe[STRIPES];");
+        out.println("    public " + u.name + 
+                    " (java.util.function.BiPredicate<T, T> same) {");
+        out.println("        this.same = same;");
+        out.println("        for (int i = 0; i < STRIPES; i++) " + 
+                    "stripes[i] = new Stripe();");
+        out.println("    }");
+        out.println("    @SuppressWarnings(\"unchecked\")");
+        out.println("    public T intern (T n, int hash) {");
+        out.println("        int h = hash ^ (hash >>> 16);");
+        out.println("        Stripe s = stripes[h & (STRIPES - 1)];");
+        out.println("        synchronized (s) {");
+        out.println("            s.expunge();");
+        out.println("            int i = (h >>> 4) & (s.table.length - 1);");
+        out.println("            for (Entry e = s.table[i]; e != null; " + 
+                    "e = e.next) {");
+        out.println("                if (e.hash != h) continue;");
+        out.println("                T m = (T)e.get();");
+        out.println("                if (m != null && same.test(m, n)) " + 
+                    "return m;");
+        out.println("            }");
+        out.println("            s.add(n, h, i);");
+        out.println("            return n;");
+        out.println("        }");
+        out.println("    }");
+        out.println("    // Whether the arrays of nodes have the same nodes");
+        out.println("    public static boolean same (Object[] a, " + 
+                    "Object[] b) {");
+        out.println("        if (a == b) return true;");
+        out.println("        if (a == null || b == null || " + 
+                    "a.length != b.length) return false;");
+        out.println("        for (int i = 0; i < a.length; i++) {");
+        out.println("            if (a[i] != b[i]) return false;");
+        out.println("        }");
+        out.println("        return true;");
+        out.println("    }");
+        out.println("    public static int hash (Object[] a) {");
+        out.println("        if (a == null) return 0;");
+        out.println("        int h = 1;");
+        out.println("        for (int i = 0; i < a.length; i++) " + 
+                    "h = 31 * h + System.identityHashCode(a[i]);");
+        out.println("        return h;");
+        out.println("    }");
+        out.println("    public int size () {");
+        out.println("        int size = 0;");
+        out.println("        for (int i = 0; i < STRIPES; i++) {");
+        out.println("            synchronized (stripes[i]) {");
+        out.println("                stripes[i].expunge();");
+        out.println("                size += stripes[i].size;");
+        out.println("            }");
+        out.println("        }");
+        out.println("        return size;");
+        out.println("    }");
+        out.println("    private static class Entry extends " + ref + 
+                    ".WeakReference<Object> {");
+        out.println("        final int hash;");
+        out.println("        Entry next;");
+        out.println("        Entry (Object n, int hash, Entry next, " + 
+                    ref + ".ReferenceQueue<Object> queue) {");
+        out.println("            super(n, queue);");
+        out.println("            this.hash = hash;");
+        out.println("            this.next = next;");
+        out.println("        }");
+        out.println("    }");
+        out.println("    private static class Stripe {");
+        out.println("        private final " + ref + 
+                    ".ReferenceQueue<Object> queue = new " + ref + 
+                    ".ReferenceQueue<Object>();");
+        out.println("        Entry[] table = new Entry[16];");
+        out.println("        int size = 0;");
+        out.println("        void add (Object n, int h, int i) {");
+        out.println("            table[i] = new Entry(n, h, table[i], queue);");
+        out.println("            if (++size > table.length - " + 
+                    "(table.length >>> 2)) grow();");
+        out.println("        }");
+        out.println("        // Removes the entries of the nodes collected");
+        out.println("        void expunge () {");
+        out.println("            " + ref + ".Reference<?> r;");
+        out.println("            while ((r = queue.poll()) != null) {");
+        out.println("                Entry e = (Entry)r;");
+        out.println("                int i = (e.hash >>> 4) & " + 
+                    "(table.length - 1);");
+        out.println("                for (Entry f = table[i], prev = null; " + 
+                    "f != null; prev = f, f = f.next) {");
+        out.println("                    if (f != e) continue;");
+        out.println("                    if (prev == null) table[i] = f.next;");
+        out.println("                    else prev.next = f.next;");
+        out.println("                    size--;");
+        out.println("                    break;");
+        out.println("                }");
+        out.println("            }");
+        out.println("        }");
+        out.println("        private void grow () {");
+        out.println("            Entry[] old = table;");
+        out.println("            table = new Entry[old.length * 2];");
+        out.println("            for (int i = 0; i < old.length; i++) {");
+        out.println("                Entry e = old[i];");
+        out.println("                while (e != null) {");
+        out.println("                    Entry next = e.next;");
+        out.println("                    int j = (e.hash >>> 4) & " + 
+                    "(table.length - 1);");
+        out.println("                    e.next = table[j];");
+        out.println("                    table[j] = e;");
+        out.println("                    e = next;");
+        out.println("                }");
+        out.println("            }");
+        out.println("        }");
+        out.println("    }");
+        out.println("}");
+    }
+
+    // The name of the codec that serializes the nodes
+    private static String codec (Params p) {
+        String root = p.root;
+        return root.substring(root.lastIndexOf('.') + 1) + "Codec";
+    }
+
+    // Generates writeTo and readFrom of the node u if it is serialized
+    private void generateSerialization (Text out, Unit u) {
+        Params p = u.params;
+        if (!p.serialize) return;
+        String ioe = "java.io.IOException";
+        out.println("    public void writeTo (java.io.DataOutput out) " + 
+                    "throws " + ioe + " {");
+        out.println("        " + codec(p) + ".write(this, out);");
+        out.println("    }");
+        out.println("    public static " + u.name + " readFrom " + 
+                    "(java.io.DataInput in) throws " + ioe + " {");
+        out.println("        " + p.root + " n = " + codec(p) + ".read(in);");
+        out.println("        if (n instanceof " + u.name + ") return (" + 
+                    u.name + ")n;");
+        out.println("        throw new " + ioe + "(\"Not a " + u.name + 
+                    ": \" + n);");
+        out.println("    }");
+    }
+
+    private void generateCodec (Text out, Unit u) {
+        Params p = u.params;
+        String root = p.root;
+        HashSet<String> nodes = nodeTypes(p);
+        ArrayList<Unit> kinds = taggedNodes();
+        String ioe = "java.io.IOException";
+        if (p.pkg != null) 
+            out.println("package " + p.pkg + ";");
+        if (p.modifier != null) 
+            out.print(p.modifier + " ");
+        out.println("class " + u.name + " {");
+        out.println("    public static final long SCHEMA = 0x" + 
+                    Long.toHexString(schemaHash(kinds)) + "L;");
+        out.println("    private " + u.name + " () {}");
+        out.println("    public static void write (" + root + 
+                    " n, java.io.DataOutput out) throws " + ioe + " {");
+        out.println("        out.writeLong(SCHEMA);");
+        out.println("        new Writer(out).write(n);");
+        out.println("    }");
+        out.println("    public static " + root + 
+                    " read (java.io.DataInput in) throws " + ioe + " {");
+        out.println("        if (in.readLong() != SCHEMA)");
+        out.println("            throw new " + ioe + 
+                    "(\"The input has another schema\");");
+        out.println("        return new Reader(in).read();");
+        out.println("    }");
+
+        // writing: the nodes in post-order, each after a tag of 0 for
+        // null, 1 for the end and its kind + 2 otherwise
+        out.println("    private static class Writer {");
+        out.println("        private final java.io.DataOutput out;");
+        out.println("        private final java.util.HashMap<String, " + 
+                    "Integer> strings =");
+        out.println("            new java.util.HashMap<String, Integer>();");
+        out.println("        private " + root + "[] nodes = new " + root + 
+                    "[64];");
+        out.println("        private boolean[] leaving = new boolean[64];");
+        out.println("        private int sp = 0;");
+        out.println("        Writer (java.io.DataOutput out) " + 
+                    "{ this.out = out; }");
+        out.println("        void write (" + root + " n) throws " + ioe + " {");
+        out.println("            push(n, false);");
+        out.println("            while (sp > 0) {");
+        out.println("                n = nodes[--sp];");
+        out.println("                nodes[sp] = null;");
+        out.println("                if (n == null) {");
+        out.println("                    varint(0);");
+        out.println("                } else if (leaving[sp]) {");
+        out.println("                    record(n);");
+        out.println("                } else {");
+        out.println("                    push(n, true);");
+        generateChildren(out, u, "                    ", "push(", ", false)");
+        out.println("                }");
+        out.println("            }");
+        out.println("            varint(1);");
+        out.println("        }");
+        out.println("        private void push (" + root + 
+                    " n, boolean leave) {");
+        out.println("            if (sp == nodes.length) {");
+        out.println("                nodes = java.util.Arrays.copyOf" + 
+                    "(nodes, sp * 2);");
+        out.println("                leaving = java.util.Arrays.copyOf" + 
+                    "(leaving, sp * 2);");
+        out.println("            }");
+        out.println("            nodes[sp] = n;");
+        out.println("            leaving[sp++] = leave;");
+        out.println("        }");
+        out.println("        private void record (" + root + " n) throws " + 
+                    ioe + " {");
+        out.println("            switch (n.kind()) {");
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            String in = "                ";
+            out.println("            case " + n.name + ".KIND: {");
+            if (n.vars.length > 0 || n.params.uselineno)
+                out.println(in + n.name + " y = (" + n.name + ")n;");
+            out.println(in + "varint(" + n.name + ".KIND + 2);");
+            if (n.params.uselineno)
+                out.println(in + "varint(zig(y.getLineNo()));");
+            for (int j = 0; j < n.vars.length; j++) {
+                String type = n.types[j];
+                String elem = elementType(type);
+                String get = "y." + accessor(n.params, n.vars[j]) + "()";
+                if (type.endsWith("[]")) {
+                    String f = "f" + j;
+                    out.println(in + type + " " + f + " = " + get + ";");
+                    out.println(in + "varint((" + f + " == null) ? 0 : " + 
+                                f + ".length + 1);");
+                    if (!nodes.contains(elem))
+                        out.println(in + "if (" + f + " != null) " + 
+                                    "for (int i = 0; i < " + f + 
+                                    ".length; i++) " + 
+                                    codecWrite(elem, f + "[i]"));
+                } else if (!nodes.contains(type)) {
+                    out.println(in + codecWrite(type, get));
+                }
+            }
+            out.println(in + "break;");
+            out.println("            }");
+        }
+        out.println("            default: throw new IllegalArgumentException" + 
+                    "(\"Not a serialized node: \" + n);");
+        out.println("            }");
+        out.println("        }");
+        out.println("        private void string (String s) throws " + 
+                    ioe + " {");
+        out.println("            if (s == null) {");
+        out.println("                varint(0);");
+        out.println("                return;");
+        out.println("            }");
+        out.println("            Integer i = strings.get(s);");
+        out.println("            if (i != null) {");
+        out.println("                varint(i + 2);");
+        out.println("                return;");
+        out.println("            }");
+        out.println("            strings.put(s, strings.size());");
+        out.println("            varint(1);");
+        out.println("            varint(s.length());");
+        out.println("            for (int k = 0; k < s.length(); k++) " + 
+                    "varint(s.charAt(k));");
+        out.println("        }");
+        out.println("        private void varint (int v) throws " + ioe + " {");
+        out.println("            while ((v & ~0x7F) != 0) {");
+        out.println("                out.writeByte((v & 0x7F) | 0x80);");
+        out.println("                v >>>= 7;");
+        out.println("            }");
+        out.println("            out.writeByte(v);");
+        out.println("        }");
+        out.println("        private void varlong (long v) throws " + 
+                    ioe + " {");
+        out.println("            while ((v & ~0x7FL) != 0) {");
+        out.println("                out.writeByte((int)(v & 0x7F) | 0x80);");
+        out.println("                v >>>= 7;");
+        out.println("            }");
+        out.println("            out.writeByte((int)v);");
+        out.println("        }");
+        out.println("        private static int zig (int v) " + 
+                    "{ return (v << 1) ^ (v >> 31); }");
+        out.println("        private static long zig (long v) " + 
+                    "{ return (v << 1) ^ (v >> 63); }");
+        out.println("    }");
+
+        // reading: each node is made from the nodes before it on a stack
+        out.println("    private static class Reader {");
+        out.println("        private final java.io.DataInput in;");
+        out.println("        private final java.util.ArrayList<String> " + 
+                    "strings =");
+        out.println("            new java.util.ArrayList<String>();");
+        out.println("        private " + root + "[] nodes = new " + root + 
+                    "[64];");
+        out.println("        private int sp = 0;");
+        out.println("        Reader (java.io.DataInput in) " + 
+                    "{ this.in = in; }");
+        out.println("        " + root + " read () throws " + ioe + " {");
+        out.println("            for (int tag; (tag = varint()) != 1; ) {");
+        out.println("                " + root + 
+                    " n = (tag == 0) ? null : node(tag - 2);");
+        out.println("                if (sp == nodes.length)");
+        out.println("                    nodes = java.util.Arrays.copyOf" + 
+                    "(nodes, sp * 2);");
+        out.println("                nodes[sp++] = n;");
+        out.println("            }");
+        out.println("            if (sp != 1) throw new " + ioe + 
+                    "(\"Malformed input\");");
+        out.println("            return nodes[0];");
+        out.println("        }");
+        out.println("        private " + root + " pop () throws " + 
+                    ioe + " {");
+        out.println("            if (sp == 0) throw new " + ioe + 
+                    "(\"Malformed input\");");
+        out.println("            " + root + " n = nodes[--sp];");
+        out.println("            nodes[sp] = null;");
+        out.println("            return n;");
+        out.println("        }");
+        out.println("        private <T> T pop (Class<T> c) throws " + 
+                    ioe + " {");
+        out.println("            " + root + " n = pop();");
+        out.println("            if (n != null && !c.isInstance(n))");
+        out.println("                throw new " + ioe + 
+                    "(\"Malformed input\");");
+        out.println("            return c.cast(n);");
+        out.println("        }");
+        out.println("        private " + root + " node (int kind) throws " + 
+                    ioe + " {");
+        out.println("            switch (kind) {");
+        for (int i = 0; i < kinds.size(); i++) {
+            Unit n = kinds.get(i);
+            String in = "                ";
+            out.println("            case " + n.name + ".KIND: {");
+            StringBuilder args = new StringBuilder();
+            if (n.params.uselineno) {
+                out.println(in + "int ln = unzig(varint());");
+                args.append("ln");
+            }
+            for (int j = 0; j < n.vars.length; j++) {
+                String type = n.types[j];
+                String elem = elementType(type);
+                String f = "f" + j;
+                if (args.length() > 0) args.append(", ");
+                args.append(f);
+                if (type.endsWith("[]")) {
+                    String len = "n" + j;
+                    out.println(in + type + " " + f + " = null;");
+                    out.println(in + "int " + len + " = length() - 1;");
+                    out.println(in + "if (" + len + " >= 0) {");
+                    if (nodes.contains(elem)) {
+                        // the elements are on the stack already
+                        out.println(in + "    if (" + len + " > sp) " + 
+                                    "throw new " + ioe + 
+                                    "(\"Malformed input\");");
+                        out.println(in + "    " + f + " = new " + 
+                                    newArray(elem, len) + ";");
+                    } else {
+                        // grown as the elements come, so that a broken
+                        // length runs into the end of the input first
+                        out.println(in + "    " + f + " = new " + 
+                                    newArray(elem, "Math.min(" + len + 
+                                             ", 1024)") + ";");
+                        out.println(in + "    for (int i = 0; i < " + len + 
+                                    "; i++) {");
+                        out.println(in + "        if (i == " + f + 
+                                    ".length) " + f + " = java.util.Arrays" + 
+                                    ".copyOf(" + f + ", Math.min(" + len + 
+                                    ", i * 2));");
+                        out.println(in + "        " + f + "[i] = " + 
+                                    codecRead(elem) + ";");
+                        out.println(in + "    }");
+                    }
+                    out.println(in + "}");
+                } else if (!nodes.contains(type)) {
+                    out.println(in + type + " " + f + " = " + 
+                                codecRead(type) + ";");
+                }
+            }
+            for (int j = n.vars.length - 1; j >= 0; j--) {
+                String type = n.types[j];
+                String elem = elementType(type);
+                String f = "f" + j;
+                if (type.endsWith("[]") && nodes.contains(elem)) {
+                    out.println(in + "if (" + f + " != null)");
+                    out.println(in + "    for (int i = " + f + 
+                                ".length - 1; i >= 0; i--) " + f + 
+                                "[i] = " + pop(root, elem) + ";");
+                } else if (nodes.contains(type)) {
+                    out.println(in + type + " " + f + " = " + 
+                                pop(root, type) + ";");
+                }
+            }
+            out.println(in + "return new " + n.name + "(" + args + ");");
+            out.println("            }");
+        }
+        out.println("            default: throw new " + ioe + 
+                    "(\"Unknown kind \" + kind);");
+        out.println("            }");
+        out.println("        }");
+        out.println("        private String string () throws " + ioe + " {");
+        out.println("            int i = varint();");
+        out.println("            if (i == 0) return null;");
+        out.println("            if (i < 0 || i - 2 >= strings.size())");
+        out.println("                throw new " + ioe + 
+                    "(\"Malformed input\");");
+        out.println("            if (i > 1) return strings.get(i - 2);");
+        out.println("            int len = length();");
+        out.println("            StringBuilder sb = new StringBuilder" + 
+                    "(Math.min(len, 1024));");
+        out.println("            for (int k = 0; k < len; k++) " + 
+                    "sb.append((char)varint());");
+        out.println("            String s = sb.toString();");
+        out.println("            strings.add(s);");
+        out.println("            return s;");
+        out.println("        }");
+        out.println("        private int varint () throws " + ioe + " {");
+        out.println("            int v = 0;");
+        out.println("            for (int shift = 0; shift < 32; " + 
+                    "shift += 7) {");
+        out.println("                int b = in.readByte();");
+        out.println("                v |= (b & 0x7F) << shift;");
+        out.println("                if (b >= 0) return v;");
+        out.println("            }");
+        out.println("            throw new " + ioe + 
+                    "(\"Malformed varint\");");
+        out.println("        }");
+        out.println("        private int length () throws " + ioe + " {");
+        out.println("            int n = varint();");
+        out.println("            if (n < 0) throw new " + ioe + 
+                    "(\"Malformed input\");");
+        out.println("            return n;");
+        out.println("        }");
+        out.println("        private long varlong () throws " + ioe + " {");
+        out.println("            long v = 0;");
+        out.println("            for (int shift = 0; shift < 64; " + 
+                    "shift += 7) {");
+        out.println("                int b = in.readByte();");
+        out.println("                v |= (long)(b & 0x7F) << shift;");
+        out.println("                if (b >= 0) return v;");
+        out.println("            }");
+        out.println("            throw new " + ioe + 
+                    "(\"Malformed varint\");");
+        out.println("        }");
+        out.println("        private static int unzig (int v) " + 
+                    "{ return (v >>> 1) ^ -(v & 1); }");
+        out.println("        private static long unzig (long v) " + 
+                    "{ return (v >>> 1) ^ -(v & 1L); }");
+        out.println("    }");
+        out.println("}");
+    }
+
+    // A statement that writes value of type, other than a node, with
+    // the integers as varints
+    private static String codecWrite (String type, String value) {
+        if (type.equals("boolean")) return "out.writeBoolean(" + value + ");";
+        if (type.equals("byte")) return "out.writeByte(" + value + ");";
+        if (type.equals("char")) return "varint(" + value + ");";
+        if (type.equals("short") || type.equals("int")) 
+            return "varint(zig(" + value + "));";
+        if (type.equals("long")) return "varlong(zig(" + value + "));";
+        if (type.equals("float")) return "out.writeFloat(" + value + ");";
+        if (type.equals("double")) return "out.writeDouble(" + value + ");";
+        return "string(" + value + ");";
+    }
+
+    // An expression that reads a value of type written by codecWrite
+    // An expression that pops a node of type, or null, off the stack of
+    // the reader
+    private static String pop (String root, String type) {
+        if (type.equals(root)) return "pop()";
+        return "pop(" + type + ".class)";
+    }
+
+    private static String codecRead (String type) {
+        if (type.equals("boolean")) return "in.readBoolean()";
+        if (type.equals("byte")) return "in.readByte()";
+        if (type.equals("char")) return "(char)varint()";
+        if (type.equals("short")) return "(short)unzig(varint())";
+        if (type.equals("int")) return "unzig(varint())";
+        if (type.equals("long")) return "unzig(varlong())";
+        if (type.equals("float")) return "in.readFloat()";
+        if (type.equals("double")) return "in.readDouble()";
+        return "string()";
     }
 
     ////////////////////////////////////////////////////////////////////////
-    // Other Methods
+    // Records Style
 
-    public void finishUp () {
-        if (param_genrootp) {
-            generateRootClass();
+    // The generated interfaces, by qualified name, with the units that
+    // directly implement them
+    private HashMap<String, ArrayList<Unit>> permits = null;
+
+    private void findPermits () {
+        permits = new HashMap<String, ArrayList<Unit>>();
+        for (int i = 0; i < units.size(); i++) {
+            Unit u = units.get(i);
+            if (u.kind == U_ABSTRACT || u.kind == U_ROOT)
+                permits.put(qualify(u.params.pkg, u.name), 
+                            new ArrayList<Unit>());
         }
-        if (param_visitor != null) {
-            generateVisitor();
+        for (int i = 0; i < units.size(); i++) {
+            Unit u = units.get(i);
+            if (u.kind == U_ABSTRACT || u.kind == U_NODE) {
+                ArrayList<Unit> subs = 
+                    permits.get(qualify(u.params.pkg, u.supername));
+                if (subs != null) subs.add(u);
+            }
         }
     }
 
-    private void generateRootClass () {
-        try {
-            String filename = param_root + fext;
-            if (!debug) {
-                out  = new PrintStream
-                    (new BufferedOutputStream
-                     (new FileOutputStream(filename)));
-            }
-            writeHeader(out, filename);
-            if (param_package != null) 
-                out.println("package " + param_package + ";");
-            if (param_modifier != null) 
-                out.print(param_modifier + " ");
-            out.print("abstract class " + param_root + " {");
-            if (param_visitor != null) {
-                out.println("");
-                out.print("    public abstract void accept (" + 
-                          param_visitor + " v)");
-                if (param_exception != null) {
-                    out.print(" throws " + param_exception);
+    private static String qualify (String pkg, String name) {
+        return (pkg == null || name.indexOf('.') >= 0) 
+            ? name : pkg + "." + name;
+    }
+
+    // An interface that permits the units implementing it.  One
+    // without such units is left open.
+    private void generateInterface (Text out, Unit u, String supername) {
+        Params p = u.params;
+        ArrayList<Unit> subs = permits.get(qualify(p.pkg, u.name));
+        if (p.pkg != null) 
+            out.println("package " + p.pkg + ";");
+        if (p.modifier != null) 
+            out.print(p.modifier + " ");
+        if (!subs.isEmpty())
+            out.print("sealed ");
+        else if (supername != null && 
+                 permits.containsKey(qualify(p.pkg, supername)))
+            out.print("non-sealed ");
+        out.print("interface " + u.name);
+        if (supername != null && !supername.equals("Object"))
+            out.print(" extends " + supername);
+        for (int i = 0; i < subs.size(); i++) {
+            Unit sub = subs.get(i);
+            out.print(i == 0 ? " permits " : ", ");
+            if (sub.params.pkg == null || sub.params.pkg.equals(p.pkg))
+                out.print(sub.name);
+            else
+                out.print(sub.params.pkg + "." + sub.name);
+        }
+        if (u.kind == U_ROOT && (p.kinds || p.visitor != null || 
+                                 hasTypedVisitor(p) || p.serialize)) {
+            out.println(" {");
+            if (p.kinds) {
+                out.println("    int KIND_COUNT = " + nkinds + ";");
+                out.println("    int kind ();");
+            }
+            if (p.visitor != null) {
+                out.print("    void accept (" + p.visitor + " v)");
+                if (p.exception != null) {
+                    out.print(" throws " + p.exception);
                 }
                 out.println(";");
             }
+            for (int k = U_GENERIC_VISITOR; k <= U_BOOLEAN_VISITOR; k++) {
+                if (typedVisitor(p, k) == null) continue;
+                out.print("    " + typedAccept(p, k));
+                if (p.exception != null) {
+                    out.print(" throws " + p.exception);
+                }
+                out.println(";");
+            }
+            if (p.serialize) {
+                out.println("    void writeTo (java.io.DataOutput out) " + 
+                            "throws java.io.IOException;");
+                out.println("    static " + u.name + " readFrom " + 
+                            "(java.io.DataInput in) throws " + 
+                            "java.io.IOException {");
+                out.println("        return " + codec(p) + ".read(in);");
+                out.println("    }");
+            }
             out.println("}");
-        } catch (IOException e) {}
-        finally {
-            if (!debug && out != null) out.close(); 
+        } else {
+            out.println(" {}");
         }
     }
 
-    private void generateVisitor () {
+    private void generateRecord (Text out, Unit u) {
+        Params p = u.params;
+        String[] types = u.types;
+        String[] vars = u.vars;
+        if (p.pkg != null) 
+            out.println("package " + p.pkg + ";");
+        if (p.modifier != null) 
+            out.print(p.modifier + " ");
+        out.print("record " + u.name + " (");
+        if (p.uselineno) {
+            out.print("int __lineno");
+            if (vars.length>0) {
+                out.print(", ");
+            }
+        }
+        for (int i=0; i<vars.length; i++) {
+            if (i > 0) out.print(", ");
+            out.print(types[i] + " " + vars[i]);
+        }
+        out.print(")");
+        if (!u.supername.equals("Object"))
+            out.print(" implements " + u.supername);
+        if (!p.uselineno && u.tag < 0 && p.visitor == null && 
+            !hasTypedVisitor(p) && !p.intern && !p.equality && 
+            !p.serialize) {
+            out.println(" {}");
+            return;
+        }
+        out.println(" {");
+        if (u.tag >= 0) {
+            out.println("    public static final int KIND = " + u.tag + ";");
+        }
+        if (p.uselineno) {
+            out.println("    public int getLineNo () { return __lineno; }");
+        }
+        if (u.tag >= 0) {
+            out.println("    public int kind () { return KIND; }");
+        }
+        if (p.visitor != null) {
+            out.print("    public void accept (" + p.visitor + " v)");
+            if (p.exception != null) {
+                out.print(" throws " + p.exception);
+            }
+            out.println(" {");
+            out.println("        v.visit" + u.name + "(this);");
+            out.println("    }");
+        }
+        generateTypedAccepts(out, u);
+        generateInterning(out, u);
+        generateEquals(out, u);
+        generateSerialization(out, u);
+        out.println("}");
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    // Class File Backend
+
+    // The internal names of the generated classes
+    private HashSet<String> classes = null;
+
+    // Whether each name is of a class in java.lang
+    private static ConcurrentHashMap<String, Boolean> javalang =
+        new ConcurrentHashMap<String, Boolean>();
+
+    private void emitClass (Unit u) {
+        Params p = u.params;
+        ClassFileWriter cw;
+        switch (u.kind) {
+        case U_NODE: cw = nodeClassFile(u); break;
+        case U_ROOT: cw = rootClassFile(u); break;
+        case U_VISITOR: cw = visitorClassFile(u); break;
+        case U_GENERIC_VISITOR:
+        case U_INT_VISITOR:
+        case U_BOOLEAN_VISITOR: cw = typedVisitorClassFile(u); break;
+        default: cw = abstractClassFile(u, u.name, u.supername); break;
+        }
         try {
-            String filename = param_visitor + fext;
-            if (!debug) {
-                out = new PrintStream
-                    (new BufferedOutputStream(new FileOutputStream(filename)));
-            }
-            writeHeader(out, filename);
-            if (param_package != null) 
-                out.println("package " + param_package + ";");
-            if (param_modifier != null) 
-                out.print(param_modifier + " ");
-            out.println("abstract class " + param_visitor + " {");
-            for (int i=0; i < vmethods.size(); i++) {
-                out.println("    public abstract " + vmethods.get(i) + ";");
+            classSink.writeClass(p.pkg, u.name, cw.toByteArray());
+        } catch (IOException e) {
+            failures.add(e);
+        }
+    }
+
+    private ClassFileWriter abstractClassFile (Unit u, String name, 
+                                               String supername) {
+        Params p = u.params;
+        int access = classFlags(p.modifier) | ClassFileWriter.ACC_ABSTRACT;
+        ClassFileWriter cw = new ClassFileWriter
+            (access, internalName(p.pkg, name), typeRef(p.pkg, supername));
+        // the default constructor has the access of the class
+        String sname = typeRef(p.pkg, supername);
+        cw.addMethod(access & ClassFileWriter.ACC_PUBLIC, "<init>", "()V", null)
+            .load("L", 0)
+            .method(ClassFileWriter.INVOKESPECIAL, sname, "<init>", "()V")
+            .ret("V")
+            .maxs(1, 1);
+        return cw;
+    }
+
+    private ClassFileWriter nodeClassFile (Unit u) {
+        Params p = u.params;
+        String self = internalName(p.pkg, u.name);
+        String sname = typeRef(p.pkg, u.supername);
+        ClassFileWriter cw = new ClassFileWriter
+            (classFlags(p.modifier), self, sname);
+        if (u.tag >= 0)
+            cw.addField(ClassFileWriter.ACC_PUBLIC, "KIND", u.tag);
+        String[] descs = new String[u.vars.length];
+        for (int i = 0; i < descs.length; i++) {
+            descs[i] = descriptor(p.pkg, u.types[i]);
+        }
+
+        // private fields
+        if (p.uselineno)
+            cw.addField(ClassFileWriter.ACC_PRIVATE, "__lineno", "I");
+        for (int i = 0; i < descs.length; i++) {
+            cw.addField(ClassFileWriter.ACC_PRIVATE, u.vars[i], descs[i]);
+        }
+
+        // constructor
+        StringBuilder sb = new StringBuilder("(");
+        if (p.uselineno) sb.append('I');
+        for (int i = 0; i < descs.length; i++) {
+            sb.append(descs[i]);
+        }
+        sb.append(")V");
+        ClassFileWriter.Code code = cw.addMethod
+            (ClassFileWriter.ACC_PUBLIC, "<init>", sb.toString(), null);
+        code.load("L", 0)
+            .method(ClassFileWriter.INVOKESPECIAL, sname, "<init>", "()V");
+        int slot = 1;
+        int stack = 1;
+        if (p.uselineno) {
+            code.load("L", 0).load("I", slot)
+                .field(ClassFileWriter.PUTFIELD, self, "__lineno", "I");
+            slot++;
+            stack = 2;
+        }
+        for (int i = 0; i < descs.length; i++) {
+            code.load("L", 0).load(descs[i], slot)
+                .field(ClassFileWriter.PUTFIELD, self, u.vars[i], descs[i]);
+            slot += ClassFileWriter.size(descs[i]);
+            stack = Math.max(stack, 1 + ClassFileWriter.size(descs[i]));
+        }
+        code.ret("V").maxs(stack, slot);
+
+        // accessor
+        if (p.uselineno)
+            getter(cw, self, "getLineNo", "__lineno", "I");
+        for (int i = 0; i < descs.length; i++) {
+            char[] vs = u.vars[i].toCharArray();
+            vs[0] = Character.toUpperCase(vs[0]);
+            getter(cw, self, "get" + new String(vs), u.vars[i], descs[i]);
+        }
+        if (u.tag >= 0) {
+            cw.addMethod(ClassFileWriter.ACC_PUBLIC, "kind", "()I", null)
+                .iconst(u.tag)
+                .ret("I")
+                .maxs(1, 1);
+        }
+
+        // visitor
+        if (p.visitor != null) {
+            String vname = typeRef(p.pkg, p.visitor);
+            cw.addMethod(ClassFileWriter.ACC_PUBLIC, "accept", 
+                         "(L" + vname + ";)V", exceptions(p))
+                .load("L", 1).load("L", 0)
+                .method(ClassFileWriter.INVOKEVIRTUAL, vname, 
+                        "visit" + u.name, "(L" + self + ";)V")
+                .ret("V")
+                .maxs(2, 2);
+        }
+        for (int k = U_GENERIC_VISITOR; k <= U_BOOLEAN_VISITOR; k++) {
+            if (typedVisitor(p, k) == null) continue;
+            String vname = typeRef(p.pkg, typedVisitor(p, k));
+            String result = resultDesc(k);
+            cw.addMethod(ClassFileWriter.ACC_PUBLIC, "accept", 
+                         acceptDesc(vname, k), acceptSignature(vname, k), 
+                         exceptions(p))
+                .load("L", 1).load("L", 0).load("L", 2)
+                .interfaceMethod(vname, "visit" + u.name, 
+                                 "(L" + self + ";Ljava/lang/Object;)" + result)
+                .ret(result)
+                .maxs(3, 3);
+        }
+        return cw;
+    }
+
+    private void getter (ClassFileWriter cw, String self, String method,
+                         String field, String desc) {
+        cw.addMethod(ClassFileWriter.ACC_PUBLIC, method, "()" + desc, null)
+            .load("L", 0)
+            .field(ClassFileWriter.GETFIELD, self, field, desc)
+            .ret(desc)
+            .maxs(ClassFileWriter.size(desc), 1);
+    }
+
+    private ClassFileWriter rootClassFile (Unit u) {
+        Params p = u.params;
+        ClassFileWriter cw = abstractClassFile(u, p.root, "Object");
+        if (p.kinds) {
+            cw.addField(ClassFileWriter.ACC_PUBLIC, "KIND_COUNT", nkinds);
+            cw.addMethod(ClassFileWriter.ACC_PUBLIC | 
+                         ClassFileWriter.ACC_ABSTRACT, "kind", "()I", null);
+        }
+        if (p.visitor != null) {
+            cw.addMethod(ClassFileWriter.ACC_PUBLIC | 
+                         ClassFileWriter.ACC_ABSTRACT, "accept",
+                         "(L" + typeRef(p.pkg, p.visitor) + ";)V",
+                         exceptions(p));
+        }
+        for (int k = U_GENERIC_VISITOR; k <= U_BOOLEAN_VISITOR; k++) {
+            if (typedVisitor(p, k) == null) continue;
+            String vname = typeRef(p.pkg, typedVisitor(p, k));
+            cw.addMethod(ClassFileWriter.ACC_PUBLIC | 
+                         ClassFileWriter.ACC_ABSTRACT, "accept", 
+                         acceptDesc(vname, k), acceptSignature(vname, k), 
+                         exceptions(p));
+        }
+        return cw;
+    }
+
+    private ClassFileWriter visitorClassFile (Unit u) {
+        Params p = u.params;
+        ClassFileWriter cw = abstractClassFile(u, p.visitor, "Object");
+        // the same methods as vmethods
+        for (int i = 0; i < units.size(); i++) {
+            Unit n = units.get(i);
+            if (n.kind == U_NODE && n.params.visitor != null) {
+                cw.addMethod(ClassFileWriter.ACC_PUBLIC | 
+                             ClassFileWriter.ACC_ABSTRACT, "visit" + n.name,
+                             "(L" + typeRef(p.pkg, n.name) + ";)V",
+                             exceptions(n.params));
             }
-            out.println("}");
-            out.flush();
-        } catch (IOException e) {}
-        finally {
-            if (!debug && out != null)
-                out.close();
         }
+        return cw;
+    }
+
+    private ClassFileWriter typedVisitorClassFile (Unit u) {
+        Params p = u.params;
+        int access = (classFlags(p.modifier) & ClassFileWriter.ACC_PUBLIC) |
+            ClassFileWriter.ACC_INTERFACE | ClassFileWriter.ACC_ABSTRACT;
+        ClassFileWriter cw = new ClassFileWriter
+            (access, internalName(p.pkg, u.name), "java/lang/Object");
+        cw.setSignature(typeParamsSignature(u.kind) + "Ljava/lang/Object;");
+        for (int i = 0; i < units.size(); i++) {
+            Unit n = units.get(i);
+            if (n.kind == U_NODE && typedVisitor(n.params, u.kind) != null) {
+                String node = "L" + typeRef(p.pkg, n.name) + ";";
+                cw.addMethod(ClassFileWriter.ACC_PUBLIC | 
+                             ClassFileWriter.ACC_ABSTRACT, "visit" + n.name,
+                             "(" + node + "Ljava/lang/Object;)" + 
+                             resultDesc(u.kind),
+                             "(" + node + "TA;)" + resultSignature(u.kind),
+                             exceptions(n.params));
+            }
+        }
+        return cw;
+    }
+
+    private static String resultDesc (int kind) {
+        switch (kind) {
+        case U_GENERIC_VISITOR: return "Ljava/lang/Object;";
+        case U_INT_VISITOR: return "I";
+        default: return "Z";
+        }
+    }
+
+    private static String resultSignature (int kind) {
+        return (kind == U_GENERIC_VISITOR) ? "TR;" : resultDesc(kind);
+    }
+
+    private static String typeParamsSignature (int kind) {
+        return (kind == U_GENERIC_VISITOR) 
+            ? "<R:Ljava/lang/Object;A:Ljava/lang/Object;>" 
+            : "<A:Ljava/lang/Object;>";
+    }
+
+    private static String acceptDesc (String vname, int kind) {
+        return "(L" + vname + ";Ljava/lang/Object;)" + resultDesc(kind);
+    }
+
+    private static String acceptSignature (String vname, int kind) {
+        String args = (kind == U_GENERIC_VISITOR) ? "<TR;TA;>" : "<TA;>";
+        return typeParamsSignature(kind) + "(L" + vname + args + ";TA;)" + 
+            resultSignature(kind);
+    }
+
+    private static int classFlags (String modifier) {
+        int flags = ClassFileWriter.ACC_SUPER;
+        if (modifier != null) {
+            String[] words = modifier.trim().split("\\s+");
+            for (int i = 0; i < words.length; i++) {
+                if (words[i].equals("public")) 
+                    flags |= ClassFileWriter.ACC_PUBLIC;
+                else if (words[i].equals("final")) 
+                    flags |= ClassFileWriter.ACC_FINAL;
+                else if (words[i].equals("abstract")) 
+                    flags |= ClassFileWriter.ACC_ABSTRACT;
+            }
+        }
+        return flags;
+    }
+
+    private String[] exceptions (Params p) {
+        if (p.exception == null) return null;
+        String[] names = p.exception.split(",");
+        for (int i = 0; i < names.length; i++) {
+            names[i] = typeRef(p.pkg, names[i].trim());
+        }
+        return names;
+    }
+
+    // Returns the descriptor of a Java type as written in the source
+    // files of package pkg
+    private String descriptor (String pkg, String type) {
+        StringBuilder sb = new StringBuilder();
+        while (type.endsWith("[]")) {
+            sb.append('[');
+            type = type.substring(0, type.length() - 2);
+        }
+        if (type.equals("int")) sb.append('I');
+        else if (type.equals("boolean")) sb.append('Z');
+        else if (type.equals("long")) sb.append('J');
+        else if (type.equals("double")) sb.append('D');
+        else if (type.equals("float")) sb.append('F');
+        else if (type.equals("char")) sb.append('C');
+        else if (type.equals("byte")) sb.append('B');
+        else if (type.equals("short")) sb.append('S');
+        else sb.append('L').append(typeRef(pkg, type)).append(';');
+        return sb.toString();
+    }
+
+    // Returns the internal name of the class name refers to in the
+    // source files of package pkg, which have no imports: a qualified
+    // name, a generated class of pkg, a class of java.lang, or any
+    // other class of pkg
+    private String typeRef (String pkg, String name) {
+        if (name.indexOf('.') >= 0) 
+            return name.replace('.', '/');
+        String iname = internalName(pkg, name);
+        if (classes.contains(iname) || !isJavaLang(name))
+            return iname;
+        return "java/lang/" + name;
+    }
+
+    private static String internalName (String pkg, String name) {
+        return (pkg != null) ? pkg.replace('.', '/') + "/" + name : name;
+    }
+
+    private static boolean isJavaLang (String name) {
+        Boolean b = javalang.get(name);
+        if (b == null) {
+            try {
+                Class.forName("java.lang." + name, false, null);
+                b = Boolean.TRUE;
+            } catch (ClassNotFoundException e) {
+                b = Boolean.FALSE;
+            }
+            javalang.put(name, b);
+        }
+        return b.booleanValue();
     }
 
-    private void writeHeader (PrintStream out, String filename) {
+    private void writeHeader (Text out, String filename, Params p) {
         if (!debug) {
             out.println("// " + filename);
-            if (param_message != null) out.println(param_message);
+            if (p.message != null) out.println(p.message);
         }
-        if (param_source != null || 
-            param_version != null || 
-            param_author != null) {
+        if (p.source != null || 
+            p.version != null || 
+            p.author != null) {
             out.print("//");
-            if (param_source != null) 
-                out.print(" Source: " + param_source);
-            if (param_version != null) 
-                out.print(" Version: " + param_version);
-            if (param_author != null) 
-                out.print(" Author: " + param_author);
+            if (p.source != null) 
+                out.print(" Source: " + p.source);
+            if (p.version != null) 
+                out.print(" Version: " + p.version);
+            if (p.author != null) 
+                out.print(" Author: " + p.author);
             out.println("");
         }
     }
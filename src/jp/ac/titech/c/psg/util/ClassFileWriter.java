@@ -0,0 +1,463 @@
+/*
+ * AST2J : A simple visitor generator for Java
+ * Copyright (c) 2000-2017 Takuo Watanabe <takuo@acm.org>
+ */
+
+package jp.ac.titech.c.psg.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A minimal writer of class files, enough for classes and interfaces
+ * with fields, int constants and straight-line methods.  The class
+ * files are of version 52 (Java 8), which needs no stack map frames as
+ * long as the code has no branch.
+ * The names are internal names such as "java/lang/Object".
+ **/
+public class ClassFileWriter {
+
+    // Access flags
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_PRIVATE = 0x0002;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+    public static final int ACC_INTERFACE = 0x0200;
+    public static final int ACC_ABSTRACT = 0x0400;
+
+    // Opcodes
+    public static final int ICONST_0 = 0x03;
+    public static final int BIPUSH = 0x10;
+    public static final int SIPUSH = 0x11;
+    public static final int LDC = 0x12;
+    public static final int LDC_W = 0x13;
+    public static final int ILOAD = 0x15;
+    public static final int LLOAD = 0x16;
+    public static final int FLOAD = 0x17;
+    public static final int DLOAD = 0x18;
+    public static final int ALOAD = 0x19;
+    public static final int IRETURN = 0xac;
+    public static final int LRETURN = 0xad;
+    public static final int FRETURN = 0xae;
+    public static final int DRETURN = 0xaf;
+    public static final int ARETURN = 0xb0;
+    public static final int RETURN = 0xb1;
+    public static final int GETFIELD = 0xb4;
+    public static final int PUTFIELD = 0xb5;
+    public static final int INVOKEVIRTUAL = 0xb6;
+    public static final int INVOKESPECIAL = 0xb7;
+    public static final int INVOKEINTERFACE = 0xb9;
+    public static final int WIDE = 0xc4;
+
+    // Constant pool tags
+    private static final int CONSTANT_Utf8 = 1;
+    private static final int CONSTANT_Integer = 3;
+    private static final int CONSTANT_Class = 7;
+    private static final int CONSTANT_Fieldref = 9;
+    private static final int CONSTANT_Methodref = 10;
+    private static final int CONSTANT_InterfaceMethodref = 11;
+    private static final int CONSTANT_NameAndType = 12;
+
+    /**
+     * The code of a method.
+     **/
+    public class Code {
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int maxStack = 0;
+        private int maxLocals = 0;
+
+        private Code () {}
+
+        /**
+         * Loads the local variable at slot, of the type of descriptor
+         * desc.
+         **/
+        public Code load (String desc, int slot) {
+            if (slot <= 3) {
+                // iload_0 and so on
+                bytes.write(0x1a + (loadOpcode(desc) - ILOAD) * 4 + slot);
+                return this;
+            }
+            if (slot > 0xff) {
+                bytes.write(WIDE);
+                bytes.write(loadOpcode(desc));
+                bytes.write(slot >> 8);
+            } else
+                bytes.write(loadOpcode(desc));
+            bytes.write(slot);
+            return this;
+        }
+
+        /**
+         * Pushes the int value.
+         **/
+        public Code iconst (int value) {
+            if (value >= -1 && value <= 5) {
+                bytes.write(ICONST_0 + value);
+            } else if (value == (byte)value) {
+                bytes.write(BIPUSH);
+                bytes.write(value);
+            } else if (value == (short)value) {
+                bytes.write(SIPUSH);
+                bytes.write(value >> 8);
+                bytes.write(value);
+            } else {
+                int index = integer(value);
+                if (index <= 0xff) {
+                    bytes.write(LDC);
+                } else {
+                    bytes.write(LDC_W);
+                    bytes.write(index >> 8);
+                }
+                bytes.write(index);
+            }
+            return this;
+        }
+
+        /**
+         * Returns a value of the type of descriptor desc ("V" for
+         * none).
+         **/
+        public Code ret (String desc) {
+            bytes.write(returnOpcode(desc));
+            return this;
+        }
+
+        public Code field (int opcode, String owner, String name,
+                           String desc) {
+            return ref(opcode, member(CONSTANT_Fieldref, owner, name, desc));
+        }
+
+        public Code method (int opcode, String owner, String name,
+                            String desc) {
+            return ref(opcode, member(CONSTANT_Methodref, owner, name, desc));
+        }
+
+        /**
+         * Invokes the interface method.
+         **/
+        public Code interfaceMethod (String owner, String name, 
+                                     String desc) {
+            ref(INVOKEINTERFACE, 
+                member(CONSTANT_InterfaceMethodref, owner, name, desc));
+            bytes.write(1 + argSize(desc));
+            bytes.write(0);
+            return this;
+        }
+
+        private Code ref (int opcode, int index) {
+            bytes.write(opcode);
+            bytes.write(index >> 8);
+            bytes.write(index);
+            return this;
+        }
+
+        /**
+         * Sets the maximum depth of the operand stack and the number
+         * of the local variables, both in slots.
+         **/
+        public Code maxs (int stack, int locals) {
+            maxStack = stack;
+            maxLocals = locals;
+            return this;
+        }
+    }
+
+    // A field or a method
+    private static class Member {
+        int access;
+        int name;
+        int desc;
+        int[] exceptions;
+        int constant;
+        int signature;
+        Code code;
+    }
+
+    private ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private DataOutputStream pout = new DataOutputStream(pool);
+    private HashMap<String, Integer> indices = new HashMap<String, Integer>();
+    private int count = 1;
+    private int access;
+    private int thisClass;
+    private int superClass;
+    private ArrayList<Member> fields = new ArrayList<Member>();
+    private ArrayList<Member> methods = new ArrayList<Member>();
+    private int codeName = 0;
+    private int exceptionsName = 0;
+    private int constantName = 0;
+    private int signatureName = 0;
+    private int signature = 0;
+
+    public ClassFileWriter (int access, String name, String superName) {
+        this.access = access;
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+    }
+
+    /**
+     * Sets the generic signature of the class.
+     **/
+    public void setSignature (String signature) {
+        this.signature = signature(signature);
+    }
+
+    public void addField (int access, String name, String desc) {
+        Member m = new Member();
+        m.access = access;
+        m.name = utf8(name);
+        m.desc = utf8(desc);
+        fields.add(m);
+    }
+
+    /**
+     * Adds a static final int field of the constant value.
+     **/
+    public void addField (int access, String name, int value) {
+        addField(access | ACC_STATIC | ACC_FINAL, name, "I");
+        if (constantName == 0) constantName = utf8("ConstantValue");
+        fields.get(fields.size() - 1).constant = integer(value);
+    }
+
+    /**
+     * Adds a method and returns its code to be filled, or null if the
+     * method is abstract.  exceptions are the names of the classes in
+     * the throws clause, or null.
+     **/
+    public Code addMethod (int access, String name, String desc,
+                           String[] exceptions) {
+        return addMethod(access, name, desc, null, exceptions);
+    }
+
+    /**
+     * The same as above, with the generic signature of the method if
+     * it is not null.
+     **/
+    public Code addMethod (int access, String name, String desc, 
+                           String signature, String[] exceptions) {
+        Member m = new Member();
+        m.access = access;
+        m.name = utf8(name);
+        m.desc = utf8(desc);
+        if (signature != null) m.signature = signature(signature);
+        if (exceptions != null) {
+            if (exceptionsName == 0) exceptionsName = utf8("Exceptions");
+            m.exceptions = new int[exceptions.length];
+            for (int i = 0; i < exceptions.length; i++) {
+                m.exceptions[i] = classRef(exceptions[i]);
+            }
+        }
+        if ((access & ACC_ABSTRACT) == 0) {
+            if (codeName == 0) codeName = utf8("Code");
+            m.code = new Code();
+        }
+        methods.add(m);
+        return m.code;
+    }
+
+    public byte[] toByteArray () {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(52);
+            out.writeShort(count);
+            pool.writeTo(out);
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            writeMembers(out, fields);
+            writeMembers(out, methods);
+            if (signature != 0) {
+                out.writeShort(1);
+                writeSignature(out, signature);
+            } else {
+                out.writeShort(0);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void writeMembers (DataOutputStream out, ArrayList<Member> ms)
+        throws IOException {
+        out.writeShort(ms.size());
+        for (int i = 0; i < ms.size(); i++) {
+            Member m = ms.get(i);
+            out.writeShort(m.access);
+            out.writeShort(m.name);
+            out.writeShort(m.desc);
+            out.writeShort((m.code != null ? 1 : 0) +
+                           (m.exceptions != null ? 1 : 0) +
+                           (m.constant != 0 ? 1 : 0) +
+                           (m.signature != 0 ? 1 : 0));
+            if (m.code != null) {
+                byte[] code = m.code.bytes.toByteArray();
+                out.writeShort(codeName);
+                out.writeInt(12 + code.length);
+                out.writeShort(m.code.maxStack);
+                out.writeShort(m.code.maxLocals);
+                out.writeInt(code.length);
+                out.write(code);
+                out.writeShort(0);
+                out.writeShort(0);
+            }
+            if (m.exceptions != null) {
+                out.writeShort(exceptionsName);
+                out.writeInt(2 + 2 * m.exceptions.length);
+                out.writeShort(m.exceptions.length);
+                for (int j = 0; j < m.exceptions.length; j++) {
+                    out.writeShort(m.exceptions[j]);
+                }
+            }
+            if (m.constant != 0) {
+                out.writeShort(constantName);
+                out.writeInt(2);
+                out.writeShort(m.constant);
+            }
+            if (m.signature != 0)
+                writeSignature(out, m.signature);
+        }
+    }
+
+    private void writeSignature (DataOutputStream out, int signature)
+        throws IOException {
+        out.writeShort(signatureName);
+        out.writeInt(2);
+        out.writeShort(signature);
+    }
+
+    private int signature (String signature) {
+        if (signatureName == 0) signatureName = utf8("Signature");
+        return utf8(signature);
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    // Constant Pool
+
+    private int utf8 (String s) {
+        String key = "U" + s;
+        Integer index = indices.get(key);
+        if (index != null) return index.intValue();
+        try {
+            pout.writeByte(CONSTANT_Utf8);
+            pout.writeUTF(s);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return add(key);
+    }
+
+    private int integer (int value) {
+        String key = "I" + value;
+        Integer index = indices.get(key);
+        if (index != null) return index.intValue();
+        try {
+            pout.writeByte(CONSTANT_Integer);
+            pout.writeInt(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return add(key);
+    }
+
+    private int classRef (String name) {
+        String key = "C" + name;
+        Integer index = indices.get(key);
+        if (index != null) return index.intValue();
+        int n = utf8(name);
+        entry(CONSTANT_Class, n, -1);
+        return add(key);
+    }
+
+    private int member (int tag, String owner, String name, String desc) {
+        String key = tag + owner + "." + name + ":" + desc;
+        Integer index = indices.get(key);
+        if (index != null) return index.intValue();
+        int c = classRef(owner);
+        int nt = nameAndType(name, desc);
+        entry(tag, c, nt);
+        return add(key);
+    }
+
+    private int nameAndType (String name, String desc) {
+        String key = "N" + name + ":" + desc;
+        Integer index = indices.get(key);
+        if (index != null) return index.intValue();
+        int n = utf8(name);
+        int d = utf8(desc);
+        entry(CONSTANT_NameAndType, n, d);
+        return add(key);
+    }
+
+    private void entry (int tag, int a, int b) {
+        try {
+            pout.writeByte(tag);
+            pout.writeShort(a);
+            if (b >= 0) pout.writeShort(b);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int add (String key) {
+        if (count > 0xffff)
+            throw new IllegalStateException("Too many constants");
+        indices.put(key, Integer.valueOf(count));
+        return count++;
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    // Descriptors
+
+    /**
+     * Returns the number of slots a value of descriptor desc takes.
+     **/
+    public static int size (String desc) {
+        char c = desc.charAt(0);
+        return (c == 'J' || c == 'D') ? 2 : 1;
+    }
+
+    // Returns the number of slots the arguments of a method of
+    // descriptor desc take
+    private static int argSize (String desc) {
+        int n = 0;
+        int i = 1;
+        while (desc.charAt(i) != ')') {
+            char c = desc.charAt(i);
+            n += size(desc.substring(i));
+            while (c == '[') c = desc.charAt(++i);
+            if (c == 'L') i = desc.indexOf(';', i);
+            i++;
+        }
+        return n;
+    }
+
+    private static int loadOpcode (String desc) {
+        switch (desc.charAt(0)) {
+        case 'J': return LLOAD;
+        case 'F': return FLOAD;
+        case 'D': return DLOAD;
+        case 'L': case '[': return ALOAD;
+        default: return ILOAD;
+        }
+    }
+
+    private static int returnOpcode (String desc) {
+        switch (desc.charAt(0)) {
+        case 'V': return RETURN;
+        case 'J': return LRETURN;
+        case 'F': return FRETURN;
+        case 'D': return DRETURN;
+        case 'L': case '[': return ARETURN;
+        default: return IRETURN;
+        }
+    }
+}
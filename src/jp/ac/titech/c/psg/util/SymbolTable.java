@@ -0,0 +1,133 @@
+/*
+ * AST2J : A simple visitor generator for Java
+ * Copyright (c) 2000-2017 Takuo Watanabe <takuo@acm.org>
+ */
+
+package jp.ac.titech.c.psg.util;
+
+/**
+ * A table of interned names.  Each distinct name gets a small integer
+ * ID (0, 1, 2, ...) in the order of its first appearance, and the same
+ * String instance is returned for it every time.
+ **/
+public class SymbolTable {
+    private String[] names = new String[256];
+    private int[] hashes = new int[256];
+    private int size = 0;
+
+    // Open addressing hash table of (ID + 1), 0 for an empty slot
+    private int[] slots = new int[512];
+
+    public SymbolTable () {}
+
+    /**
+     * Returns the ID of the name made of len chars of cs starting at
+     * off, adding it to the table if it is new.
+     **/
+    public int intern (char[] cs, int off, int len) {
+        int h = 0;
+        for (int i = off; i < off + len; i++) {
+            h = 31 * h + cs[i];
+        }
+        int mask = slots.length - 1;
+        int i = spread(h) & mask;
+        int s;
+        while ((s = slots[i]) != 0) {
+            int id = s - 1;
+            if (hashes[id] == h && matches(names[id], cs, off, len))
+                return id;
+            i = (i + 1) & mask;
+        }
+        return add(new String(cs, off, len), h, i);
+    }
+
+    /**
+     * Returns the ID of name, adding it to the table if it is new.
+     **/
+    public int intern (String name) {
+        int id = lookup(name);
+        if (id >= 0) return id;
+        int h = name.hashCode();
+        int mask = slots.length - 1;
+        int i = spread(h) & mask;
+        while (slots[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        return add(name, h, i);
+    }
+
+    /**
+     * Returns the ID of name, or -1 if it is not in the table.
+     **/
+    public int lookup (String name) {
+        int h = name.hashCode();
+        int mask = slots.length - 1;
+        int i = spread(h) & mask;
+        int s;
+        while ((s = slots[i]) != 0) {
+            int id = s - 1;
+            if (hashes[id] == h && names[id].equals(name))
+                return id;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the name of the given ID.
+     **/
+    public String name (int id) {
+        return names[id];
+    }
+
+    /**
+     * Returns the number of names in the table.  The IDs are 0 to
+     * size() - 1.
+     **/
+    public int size () {
+        return size;
+    }
+
+    private int add (String name, int h, int slot) {
+        if (size == names.length) {
+            String[] nnames = new String[size * 2];
+            int[] nhashes = new int[size * 2];
+            System.arraycopy(names, 0, nnames, 0, size);
+            System.arraycopy(hashes, 0, nhashes, 0, size);
+            names = nnames;
+            hashes = nhashes;
+        }
+        int id = size++;
+        names[id] = name;
+        hashes[id] = h;
+        slots[slot] = id + 1;
+        if (size * 2 > slots.length)
+            rehash();
+        return id;
+    }
+
+    private void rehash () {
+        int[] nslots = new int[slots.length * 2];
+        int mask = nslots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int i = spread(hashes[id]) & mask;
+            while (nslots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            nslots[i] = id + 1;
+        }
+        slots = nslots;
+    }
+
+    private static int spread (int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches (String name, char[] cs, int off, int len) {
+        if (name.length() != len) return false;
+        for (int i = 0; i < len; i++) {
+            if (name.charAt(i) != cs[off + i]) return false;
+        }
+        return true;
+    }
+}
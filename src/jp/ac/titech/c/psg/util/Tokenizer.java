@@ -6,13 +6,41 @@
 package jp.ac.titech.c.psg.util;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 public class Tokenizer {
     private static final boolean DEBUG = false;
 
-    private PushbackReader in = null;
+    // Input window size (in chars) for Reader and InputStream sources
+    private static final int BUFSIZE = 65536;
+
+    private Reader in = null;
+    private ByteBuffer bytes = null;
+    private int bpos = 0;
     private boolean pushedback = false;
 
+    // Input window.  The chars buf[0..limit) are those of the input
+    // starting at offset base.  The chars from tstart on are kept when
+    // the window is refilled, so that the text of the token being
+    // scanned always lies in buf.
+    private char[] buf = null;
+    private int base = 0;
+    private int pos = 0;
+    private int limit = 0;
+
+    // Extent of the current token in buf
+    private int tstart = 0;
+    private int tend = 0;
+    private boolean tescape = false;
+
+    // Names of the word tokens and the ID of the current one
+    private SymbolTable symbols = new SymbolTable();
+    private int symbol = -1;
+
+    // If true, sval is made only when sval() is called
+    private boolean lazy_sval = false;
+    private boolean sval_pending = false;
+
     // Character Types
     public static final int CT_WHITESPACE =   1;
     public static final int CT_DIGIT      =   2;
@@ -28,6 +56,14 @@ public class Tokenizer {
     private boolean use_c_comment = true;
     private boolean use_cpp_comment = true;
 
+    // Transition table compiled from the settings above (null when
+    // it has to be compiled again).  See compile().
+    private int[] table = null;
+
+    // Whether each char (COL_WIDE for the chars above U+00FF) goes on
+    // an identifier, compiled along with the table
+    private boolean[] word = null;
+
     // Token Types
     public static final int TT_EOF        = -1;
     public static final int TT_NUMBER     = -2;
@@ -59,20 +95,46 @@ public class Tokenizer {
 
     public Tokenizer (Reader r) {
         this();
-        in = new PushbackReader(r);
+        in = r;
+        buf = new char[BUFSIZE];
     }
 
     public Tokenizer (InputStream s) {
         this(new InputStreamReader(s));
     }
 
+    /**
+     * Creates a tokenizer that decodes the UTF-8 encoded bytes between
+     * the position and the limit of b directly into its window.  b is
+     * typically a buffer mapped from a file.
+     **/
+    public Tokenizer (ByteBuffer b) {
+        this();
+        bytes = b;
+        bpos = b.position();
+        buf = new char[BUFSIZE];
+    }
+
+    /**
+     * Creates a tokenizer that scans len chars of buf starting at off
+     * in place.  The token offsets are indices into buf.
+     **/
+    public Tokenizer (char[] buf, int off, int len) {
+        this();
+        this.buf = buf;
+        pos = tstart = tend = off;
+        limit = off + len;
+    }
+
     public void resetSyntax () {
+        table = null;
         for (int i = 0; i < ctype.length; i++) {
             ctype[i] = 0;
         }
     }
 
     public void setCharType (char low, char high, int type) {
+        table = null;
         // assert 0 <= low
         // assert high <= ctype.length
         for (char c = low; c <= high; c++) {
@@ -81,6 +143,7 @@ public class Tokenizer {
     }
 
     public void setCharType (String chars, int type) {
+        table = null;
         for (int i=0; i < chars.length(); i++) {
             ctype[chars.charAt(i)] |= type;
         }
@@ -95,231 +158,574 @@ public class Tokenizer {
     }
 
     public void useCComment (boolean b) {
+        table = null;
         use_c_comment = b;
     }
 
     public void useCppComment (boolean b) {
+        table = null;
         use_cpp_comment = b;
     }
 
-    public int nextToken () throws IOException {
-        // FSA state
-        final int ST_START        =  0;
-        final int ST_START1       =  1;
-        final int ST_COMMENT      =  2;
-        final int ST_C_COMMENT1   =  3;
-        final int ST_C_COMMENT2   =  4;
-        final int ST_CPP_COMMENT  =  5;
-        final int ST_NUMBER       =  6;
-        final int ST_IDENTIFIER   =  7;
-        final int ST_OPERATOR     =  8;
-        final int ST_QUOTE        =  9;
-        final int ST_QUOTE_ESCAPE = 10;
+    /**
+     * If b is true, sval of a word or quoted token is not made by
+     * nextToken but on the first call of sval().  In this mode, sval
+     * of the other tokens is null.
+     **/
+    public void useLazySval (boolean b) {
+        lazy_sval = b;
+    }
 
+    private final int read () throws IOException {
+        if (pos >= limit && !fill()) return -1;
+        return buf[pos++];
+    }
+
+    private final void unread (int c) {
+        if (c != -1) pos--;
+    }
+
+    // Refills the window keeping the chars from tstart on.
+    private boolean fill () throws IOException {
+        if (in == null && bytes == null) return false;
+        if (tstart > 0) {
+            System.arraycopy(buf, tstart, buf, 0, limit - tstart);
+            base += tstart;
+            pos -= tstart;
+            limit -= tstart;
+            tstart = 0;
+        }
+        if (buf.length - limit < 2) {
+            char[] nbuf = new char[buf.length * 2];
+            System.arraycopy(buf, 0, nbuf, 0, limit);
+            buf = nbuf;
+        }
+        int n = (in != null) ? in.read(buf, limit, buf.length - limit)
+                             : decode(limit, buf.length - limit);
+        if (n <= 0) return false;
+        limit += n;
+        return true;
+    }
+
+    // Decodes UTF-8 from bytes into at most len chars of buf starting
+    // at off.  Malformed input is replaced with U+FFFD.  Returns the
+    // number of chars decoded, or -1 at the end of the bytes.
+    private int decode (int off, int len) {
+        ByteBuffer b = bytes;
+        int p = bpos;
+        int end = b.limit();
+        int i = off;
+        int n = off + len;
+        if (p >= end) return -1;
+        while (i < n && p < end) {
+            int c = b.get(p);
+            if (c >= 0) {
+                // fast path for ASCII
+                buf[i++] = (char)c;
+                p++;
+                continue;
+            }
+            c &= 0xff;
+            int k;              // number of continuation bytes
+            int lo = 0x80;      // range of the second byte
+            int hi = 0xbf;
+            if (c >= 0xc2 && c < 0xe0) {
+                k = 1; c &= 0x1f;
+            } else if (c >= 0xe0 && c < 0xf0) {
+                k = 2; c &= 0x0f;
+                if (c == 0x00) lo = 0xa0;       // overlong
+                if (c == 0x0d) hi = 0x9f;       // surrogates
+            } else if (c >= 0xf0 && c < 0xf5) {
+                k = 3; c &= 0x07;
+                if (c == 0x00) lo = 0x90;       // overlong
+                if (c == 0x04) hi = 0x8f;       // above U+10FFFF
+                if (i + 1 >= n) break;  // no room for a surrogate pair
+            } else {
+                k = 0;
+            }
+            // j counts the bytes of the sequence that are valid so far
+            int j = 1;
+            for (; j <= k && p + j < end; j++) {
+                int d = b.get(p + j) & 0xff;
+                if (j == 1 ? (d < lo || d > hi) : (d & 0xc0) != 0x80)
+                    break;
+                c = (c << 6) | (d & 0x3f);
+            }
+            p += j;
+            if (k == 0 || j <= k) {
+                buf[i++] = '\ufffd';
+                continue;
+            }
+            if (c < 0x10000) {
+                buf[i++] = (char)c;
+            } else {
+                buf[i++] = Character.highSurrogate(c);
+                buf[i++] = Character.lowSurrogate(c);
+            }
+        }
+        bpos = p;
+        return i - off;
+    }
+
+    // FSA states
+    private static final int ST_START        =  0;
+    private static final int ST_START1       =  1;
+    private static final int ST_COMMENT      =  2;
+    private static final int ST_C_COMMENT1   =  3;
+    private static final int ST_C_COMMENT2   =  4;
+    private static final int ST_CPP_COMMENT  =  5;
+    private static final int ST_NUMBER       =  6;
+    private static final int ST_IDENTIFIER   =  7;
+    private static final int ST_OPERATOR     =  8;
+    private static final int ST_QUOTE        =  9; // and ST_QUOTE + 2 * i
+    private static final int ST_QUOTE_ESCAPE = 10; // and ... + 2 * i
+
+    // Accepting actions (in place of the next state)
+    private static final int AC_EOF          =  0;
+    private static final int AC_NUMBER       =  1;
+    private static final int AC_WORD         =  2;
+    private static final int AC_CHAR         =  3;
+    private static final int AC_QUOTE        =  4;
+    private static final int AC_ERROR        =  5;
+
+    // Table entry: the offset of the next state's row (or an accepting
+    // action) in the low bits, and the following flags.
+    private static final int TE_MASK         = 0x000fffff;
+    private static final int TE_CONSUME      = 0x00100000;
+    private static final int TE_START        = 0x00200000;
+    private static final int TE_NEWLINE      = 0x00400000;
+    private static final int TE_BACK         = 0x00800000;
+    private static final int TE_ESCAPE       = 0x01000000;
+    private static final int TE_ACCEPT       = 0x02000000;
+    private static final int TE_RARE = TE_BACK | TE_ESCAPE | TE_ACCEPT;
+
+    // Char class of EOF
+    private static final int CL_EOF          =  0;
+
+    // Row of a state in the table: one entry for each char below 256,
+    // one for the other chars and one for EOF
+    private static final int ROW             = 258;
+    private static final int COL_WIDE        = 256;
+    private static final int COL_EOF         = 257;
+
+    /**
+     * Compiles the char types and the comment settings into a dense
+     * transition table.  The chars are first grouped into classes:
+     * chars of the same type are in the same class unless they are
+     * '\n', '\\' or a quote char, each of which gets a class of its
+     * own.  Chars above U+00FF are identifier letters.  The entries
+     * are made for each class and then spread over the chars, so that
+     * nextToken needs a single lookup per char.  The identifier chars
+     * are also marked in word, with which nextToken scans the rest of
+     * an identifier without the table.
+     **/
+    private void compile () {
+        int[] cls = new int[256];
+        int wideclass = 0;
+        int[] keys = new int[258];
+        int[] ct = new int[258];
+        boolean[] nl = new boolean[258];
+        int[] quote = new int[258];
+        int nquote = 0;
+        int n = 1;              // class 0 is EOF
+        quote[CL_EOF] = -1;
+        for (int c = 0; c <= 256; c++) {
+            int t = (c < 256) ? ctype[c] : CT_IDLETTER;
+            boolean q = c < 256 && (t & CT_QUOTE) != 0;
+            int key = (c == '\n' || c == '\\' || q) ? -1 - c : t;
+            int k = 1;
+            while (k < n && keys[k] != key) k++;
+            if (k == n) {
+                n++;
+                keys[k] = key;
+                ct[k] = t;
+                nl[k] = c == '\n';
+                quote[k] = q ? nquote++ : -1;
+            }
+            if (c < 256) cls[c] = k;
+            else wideclass = k;
+        }
+
+        int nstate = ST_QUOTE + 2 * nquote;
+        int[] tbl = new int[nstate * n];
+        for (int k = 0; k < n; k++) {
+            int t = ct[k];
+            int newline = nl[k] ? TE_NEWLINE : 0;
+            boolean eof = k == CL_EOF;
+
+            // START1: the first char of a token
+            int e;
+            if (eof)
+                e = TE_ACCEPT | AC_EOF;
+            else if ((t & CT_WHITESPACE) != 0)
+                e = next(ST_START) | TE_CONSUME | newline;
+            else if ((t & CT_DIGIT) != 0)
+                e = next(ST_NUMBER) | TE_CONSUME | TE_START;
+            else if ((t & CT_IDLETTER) != 0)
+                e = next(ST_IDENTIFIER) | TE_CONSUME | TE_START;
+            else if ((t & CT_OPLETTER) != 0)
+                e = next(ST_OPERATOR) | TE_CONSUME | TE_START;
+            else if ((t & CT_QUOTE) != 0)
+                e = next(ST_QUOTE + 2 * quote[k]) | TE_CONSUME | TE_START;
+            else 
+                e = TE_ACCEPT | AC_CHAR | TE_CONSUME | TE_START;
+            tbl[ST_START1 * n + k] = e;
+
+            // START: START1 with comments
+            if ((t & CT_COMMENT1) != 0 && (use_c_comment || use_cpp_comment))
+                e = next(ST_COMMENT) | TE_CONSUME | TE_START;
+            tbl[ST_START * n + k] = e;
+
+            // COMMENT: after the first char of a comment
+            if (use_c_comment && (t & CT_COMMENT2) != 0)
+                e = next(ST_C_COMMENT1) | TE_CONSUME;
+            else if (use_cpp_comment && (t & CT_COMMENT1) != 0)
+                e = next(ST_CPP_COMMENT) | TE_CONSUME;
+            else // not a comment; read the first char again
+                e = next(ST_START1) | TE_BACK;
+            tbl[ST_COMMENT * n + k] = e;
+
+            // C_COMMENT1, C_COMMENT2: in a C-style comment
+            if (eof)
+                e = TE_ACCEPT | AC_ERROR;
+            else if ((t & CT_COMMENT2) != 0)
+                e = next(ST_C_COMMENT2) | TE_CONSUME | newline;
+            else
+                e = next(ST_C_COMMENT1) | TE_CONSUME | newline;
+            tbl[ST_C_COMMENT1 * n + k] = e;
+            if (!eof && (t & CT_COMMENT1) != 0)
+                e = next(ST_START) | TE_CONSUME | newline;
+            tbl[ST_C_COMMENT2 * n + k] = e;
+
+            // CPP_COMMENT: in a C++-style comment
+            if (eof)
+                e = next(ST_START);
+            else if (nl[k])
+                e = next(ST_START) | TE_CONSUME | newline;
+            else
+                e = next(ST_CPP_COMMENT) | TE_CONSUME;
+            tbl[ST_CPP_COMMENT * n + k] = e;
+
+            // NUMBER, IDENTIFIER, OPERATOR
+            if ((t & CT_DIGIT) != 0)
+                e = next(ST_NUMBER) | TE_CONSUME;
+            else
+                e = TE_ACCEPT | AC_NUMBER;
+            tbl[ST_NUMBER * n + k] = e;
+            if ((t & (CT_IDLETTER | CT_DIGIT)) != 0)
+                e = next(ST_IDENTIFIER) | TE_CONSUME;
+            else
+                e = TE_ACCEPT | AC_WORD;
+            tbl[ST_IDENTIFIER * n + k] = e;
+            if ((t & CT_OPLETTER) != 0)
+                e = next(ST_OPERATOR) | TE_CONSUME;
+            else
+                e = TE_ACCEPT | AC_WORD;
+            tbl[ST_OPERATOR * n + k] = e;
+
+            // QUOTE, QUOTE_ESCAPE: in a string quoted by the i-th quote
+            for (int i = 0; i < nquote; i++) {
+                int sq = ST_QUOTE + 2 * i;
+                if (eof)
+                    e = TE_ACCEPT | AC_ERROR;
+                else if (quote[k] == i)
+                    e = TE_ACCEPT | AC_QUOTE | TE_CONSUME | newline;
+                else if (k == cls['\\'])
+                    e = next(sq + 1) | TE_CONSUME | TE_ESCAPE;
+                else
+                    e = next(sq) | TE_CONSUME | newline;
+                tbl[sq * n + k] = e;
+                if (eof)
+                    e = TE_ACCEPT | AC_ERROR;
+                else
+                    e = next(sq) | TE_CONSUME | newline;
+                tbl[(sq + 1) * n + k] = e;
+            }
+        }
+        word = new boolean[COL_WIDE + 1];
+        for (int c = 0; c < 256; c++) {
+            word[c] = (ctype[c] & (CT_IDLETTER | CT_DIGIT)) != 0;
+        }
+        word[COL_WIDE] = true;
+        table = new int[nstate * ROW];
+        for (int st = 0; st < nstate; st++) {
+            for (int c = 0; c < 256; c++) {
+                table[st * ROW + c] = tbl[st * n + cls[c]];
+            }
+            table[st * ROW + COL_WIDE] = tbl[st * n + wideclass];
+            table[st * ROW + COL_EOF] = tbl[st * n + CL_EOF];
+        }
+    }
+
+    private static int next (int state) {
+        return state * ROW;
+    }
+
+    public int nextToken () throws IOException {
         if (pushedback) {
             pushedback = false;
             return ttype;
         }
 
-        int state = ST_START;
-        int c = in.read();
-        int comment_char = -1;
-        int quote_char = -1;
-        StringBuffer sbuf = null;
-
+        symbol = -1;
+        if (lazy_sval) {
+            // the text of the previous token may not survive a refill
+            sval = null;
+            sval_pending = false;
+        }
+        if (table == null) compile();
+
+        final int[] table = this.table;
+        final boolean[] word = this.word;
+        char[] buf = this.buf;
+        int pos = this.pos;
+        int limit = this.limit;
+        int state = next(ST_START);
+        tstart = pos;
+        tescape = false;
+
+        int e = -1;             // entry for buf[pos] if looked up ahead
         while (true) {
-            switch (state) {
-            case ST_START:
-                if (DEBUG)
-                    System.err.println("START       : c = " + (char)c);
-                if (c == -1) {
-                    ttype = TT_EOF;
-                    return ttype;
-                }
-                if (charType(c, CT_COMMENT1)) {
-                    comment_char = c;
-                    c = in.read();
-                    state = ST_COMMENT;
-                    break;
-                }
-                // state = ST_START1;
-                // break;
-
-            case ST_START1:
-                if (DEBUG) 
-                    System.err.println("START1      : c = " + (char)c);
-                if (charType(c, CT_WHITESPACE)) {
-                    if (c == '\n') lineno++;
-                    c = in.read();
-                    state = ST_START;
-                    break;
-                }
-                if (charType(c, CT_DIGIT)) {
-                    sbuf = new StringBuffer();
-                    sbuf.append((char)c);
-                    c = in.read();
-                    state = ST_NUMBER;
-                    break;
+            if (e == -1) {
+                int k;
+                if (pos < limit) {
+                    char c = buf[pos];
+                    k = (c < 256) ? c : COL_WIDE;
+                } else {
+                    // no token text to keep outside of tokens and comments
+                    if (state < next(ST_NUMBER) && 
+                        state != next(ST_COMMENT))
+                        tstart = pos;
+                    this.pos = pos;
+                    boolean more = fill();
+                    buf = this.buf;
+                    pos = this.pos;
+                    limit = this.limit;
+                    if (more) continue;
+                    k = COL_EOF;
                 }
-                if (charType(c, CT_IDLETTER)) {
-                    sbuf = new StringBuffer();
-                    sbuf.append((char)c);
-                    c = in.read();
-                    state = ST_IDENTIFIER;
-                    break;
-                }
-                if (charType(c, CT_OPLETTER)) {
-                    sbuf = new StringBuffer();
-                    sbuf.append((char)c);
-                    c = in.read();
-                    state = ST_OPERATOR;
-                    break;
-                }
-                if (charType(c, CT_QUOTE)) {
-                    sbuf = new StringBuffer();
-                    quote_char = c;
-                    c = in.read();
-                    state = ST_QUOTE;
-                    break;
-                }
-                ttype = c;
-                return ttype;
-
-            case ST_COMMENT:
-                if (DEBUG) 
-                    System.err.println("COMMENT     : c = " + (char)c);
-                if (use_c_comment && charType(c, CT_COMMENT2)) {
-                    c = in.read();
-                    state = ST_C_COMMENT1;
-                    break;
-                }
-                if (use_cpp_comment && charType(c, CT_COMMENT1)) {
-                    c = in.read();
-                    state = ST_CPP_COMMENT;
-                    break;
-                }
-                in.unread(c);
-                c = comment_char;
-                state = ST_START1;
-                break;
-
-            case ST_C_COMMENT1: // C-style comment
-                if (DEBUG) 
-                    System.err.println("C_COMMENT1  : c = " + (char)c);
-                if (c == -1) abort("Unexpected EOF");
-                if (c == '\n') lineno++;
-                if (charType(c, CT_COMMENT2))
-                    state = ST_C_COMMENT2;
-                c = in.read();
-                break;
-
-            case ST_C_COMMENT2: // C-style comment
+                e = table[state + k];
                 if (DEBUG)
-                    System.err.println("C_COMMENT2  : c = " + (char)c);
-                if (c == -1) abort("Unexpected EOF");
-                if (charType(c, CT_COMMENT1))
-                    state = ST_START;
-                else
-                    state = ST_C_COMMENT1;
-                c = in.read();
-                break;
-
-            case ST_CPP_COMMENT:
-                if (DEBUG) 
-                    System.err.println("CPP_COMMENT : c = " + (char)c);
-                if (c == -1) state = ST_START;
-                if (c == '\n') {
-                    lineno++;
-                    state = ST_START;
-                }
-                c = in.read();
-                break;
-
-            case ST_NUMBER: // Numbers
-                if (DEBUG) 
-                    System.err.println("NUMBER      : c = " + (char)c);
-                if (!charType(c, CT_DIGIT)) {
-                    nval = Integer.parseInt(sbuf.toString());
-                    in.unread(c);
-                    ttype = TT_NUMBER;
-                    return ttype;
-                }
-                sbuf.append((char)c);
-                c = in.read();
-                state = ST_NUMBER;
-                break;
-
-            case ST_IDENTIFIER:
-                if (DEBUG) 
-                    System.err.println("IDENTIFIER  : c = " + (char)c);
-                if (!charType(c, CT_IDLETTER | CT_DIGIT)) {
-                    sval = sbuf.toString();
-                    in.unread(c);
-                    ttype = TT_WORD;
-                    return ttype;
-                }
-                sbuf.append((char)c);
-                c = in.read();
-                state = ST_IDENTIFIER;
-                break;
-
-            case ST_OPERATOR:
-                if (DEBUG) 
-                    System.err.println("OPERATOR    : c = " + (char)c);
-                if (!charType(c, CT_OPLETTER)) {
-                    sval = sbuf.toString();
-                    in.unread(c);
-                    ttype = TT_WORD;
-                    return ttype;
-                }
-                sbuf.append((char)c);
-                c = in.read();
-                state = ST_OPERATOR;
-                break;
-
-            case ST_QUOTE: // Quoted characters
-                if (DEBUG) 
-                    System.err.println("QUOTE       : c = " + (char)c);
-                if (c == -1) abort("Unexpected EOF");
-                if (c == '\n') lineno++;
-                if (c == quote_char) {
-                    sval = sbuf.toString();
-                    ttype = c;
-                    return ttype;
-                }
-                if (c == '\\') {
-                    c = in.read();
-                    state = ST_QUOTE_ESCAPE;
-                    break;
-                }
-                sbuf.append((char)c);
-                c = in.read();
-                state = ST_QUOTE;
-                break;
-
-            case ST_QUOTE_ESCAPE:
-                if (DEBUG) 
-                    System.err.println("QUOTE_ESCAPE: c = " + (char)c);
-                if (c == -1) abort("Unexpected EOF");
-                if (c == '\n') lineno++;
-                if (c == 'n') {
-                    sbuf.append('\n');
+                    System.err.println("state " + state / ROW + 
+                                       " : c = " + (char)k);
+            }
+            if ((e & ~TE_MASK) == TE_CONSUME) {
+                pos++;
+                int f = -1;
+                if ((e & TE_MASK) == state) {
+                    // Skip the run of chars that keep the state.  The
+                    // state stays fixed, so the lookups are independent
+                    // of each other.  The entry of the char that ends
+                    // the run is the next one.
+                    while (pos < limit) {
+                        char c = buf[pos];
+                        f = table[state + (c < 256 ? c : COL_WIDE)];
+                        if (f != e) break;
+                        pos++;
+                    }
+                    if (f == e) f = -1;
                 }
-                else if (c == 't') {
-                    sbuf.append('\t');
+                state = e & TE_MASK;
+                e = f;
+                continue;
+            }
+            if ((e & TE_START) != 0) tstart = pos;
+            if ((e & TE_CONSUME) != 0) pos++;
+            if ((e & TE_NEWLINE) != 0) lineno++;
+            if ((e & TE_RARE) != 0) {
+                if ((e & TE_BACK) != 0) pos--;
+                if ((e & TE_ESCAPE) != 0) tescape = true;
+                if ((e & TE_ACCEPT) != 0) {
+                    this.pos = pos;
+                    return accept(e & TE_MASK);
                 }
-                else {
-                    sbuf.append((char)c);
+            }
+            state = e & TE_MASK;
+            if (state == next(ST_IDENTIFIER)) {
+                // Any char but an identifier char ends the word, so the
+                // run needs neither the state nor the table.  At the
+                // end of the window the table takes over again.
+                while (pos < limit) {
+                    char c = buf[pos];
+                    if (!word[c < 256 ? c : COL_WIDE]) {
+                        this.pos = pos;
+                        return accept(AC_WORD);
+                    }
+                    pos++;
                 }
-                c = in.read();
-                state = ST_QUOTE;
-                break;
+            }
+            e = -1;
+        }
+    }
+
+    private int accept (int action) throws IOException {
+        tend = pos;
+        switch (action) {
+        case AC_EOF:
+            tstart = tend;
+            ttype = TT_EOF;
+            break;
+        case AC_NUMBER:
+            nval = parseNumber();
+            ttype = TT_NUMBER;
+            break;
+        case AC_WORD:
+            ttype = TT_WORD;
+            setSval();
+            break;
+        case AC_CHAR:
+            ttype = buf[tstart];
+            break;
+        case AC_QUOTE:
+            ttype = buf[tstart];
+            setSval();
+            break;
+        default:
+            abort("Unexpected EOF");
+        }
+        return ttype;
+    }
 
-            default: // should not come here
-                throw new IOException("Unknown state. (c = '" + 
-                                      (char)c + "')");
+    private final boolean isQuote () {
+        return ttype >= 0 && charType(ttype, CT_QUOTE);
+    }
+
+    private final void setSval () {
+        if (lazy_sval) {
+            sval = null;
+            sval_pending = true;
+        } else {
+            sval = makeSval();
+            sval_pending = false;
+        }
+    }
+
+    // Makes the string value of the current word or quoted token.
+    private String makeSval () {
+        if (ttype == TT_WORD)
+            return symbols.name(symbol());
+        if (!tescape)
+            return new String(buf, tstart + 1, tend - tstart - 2);
+        StringBuilder sb = new StringBuilder(tend - tstart);
+        for (int i = tstart + 1; i < tend - 1; i++) {
+            char c = buf[i];
+            if (c == '\\') {
+                c = buf[++i];
+                if (c == 'n') c = '\n';
+                else if (c == 't') c = '\t';
             }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private int parseNumber () {
+        long n = 0;
+        for (int i = tstart; i < tend; i++) {
+            int d = Character.digit(buf[i], 10);
+            n = n * 10 + d;
+            if (d < 0 || n > Integer.MAX_VALUE)
+                throw new NumberFormatException
+                    ("For input string: \"" + 
+                     new String(buf, tstart, tend - tstart) + "\"");
+        }
+        return (int)n;
+    }
+
+    /**
+     * Returns the string value of the current token, making it first
+     * if the tokenizer is in the lazy mode.
+     **/
+    public String sval () {
+        if (sval_pending) {
+            sval = makeSval();
+            sval_pending = false;
+        }
+        return sval;
+    }
+
+    /**
+     * Returns the symbol ID of the current word token, or -1 if the
+     * current token is not a word.  The sval of a word token is the
+     * name of its ID in getSymbolTable(), so equal words share one
+     * String instance.
+     **/
+    public int symbol () {
+        if (ttype != TT_WORD) return -1;
+        if (symbol < 0)
+            symbol = symbols.intern(buf, tstart, tend - tstart);
+        return symbol;
+    }
+
+    public SymbolTable getSymbolTable () {
+        return symbols;
+    }
+
+    /**
+     * Tests whether the string value of the current token equals s
+     * without making sval.
+     **/
+    public boolean svalEquals (String s) {
+        if (!sval_pending) 
+            return sval != null && sval.equals(s);
+        if (tescape && isQuote())
+            return sval().equals(s);
+        int off = isQuote() ? tstart + 1 : tstart;
+        int len = isQuote() ? tend - tstart - 2 : tend - tstart;
+        if (len != s.length()) return false;
+        for (int i = 0; i < len; i++) {
+            if (buf[off + i] != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the first occurrence of ch in the string
+     * value of the current token (-1 if none) without making sval.
+     **/
+    public int svalIndexOf (int ch) {
+        if (!sval_pending) 
+            return sval == null ? -1 : sval.indexOf(ch);
+        if (tescape && isQuote())
+            return sval().indexOf(ch);
+        int off = isQuote() ? tstart + 1 : tstart;
+        int end = isQuote() ? tend - 1 : tend;
+        for (int i = off; i < end; i++) {
+            if (buf[i] == ch) return i - off;
         }
+        return -1;
+    }
+
+    /**
+     * Returns the input offset of the first char of the current token.
+     **/
+    public int tokenStart () {
+        return base + tstart;
+    }
+
+    /**
+     * Returns the input offset just past the last char of the current
+     * token.
+     **/
+    public int tokenEnd () {
+        return base + tend;
+    }
+
+    /**
+     * Moves a tokenizer made on a char array to offset, as if it had
+     * just read the chars before it and was on line lineno.  The next
+     * call of nextToken scans from there.
+     **/
+    public void seek (int offset, int lineno) {
+        if (in != null || bytes != null)
+            throw new IllegalStateException("cannot seek in a stream");
+        pos = tstart = tend = offset;
+        this.lineno = lineno;
+        ttype = TT_NOTHING;
+        pushedback = false;
+        symbol = -1;
+        sval = null;
+        sval_pending = false;
     }
 
     public void pushBack () {
@@ -339,12 +745,12 @@ public class Tokenizer {
         case TT_NUMBER:
             return "NUMBER [" + nval + "] (" + lineno + ")";
         case TT_WORD:
-            return "WORD [" + sval + "] (" + lineno + ")";
+            return "WORD [" + sval() + "] (" + lineno + ")";
         case TT_NOTHING:
             return "NOTHING (" + lineno + ")";
         default:
             if (charType(ttype, CT_QUOTE)) 
-                return "TOKEN [" + (char)ttype + sval + (char)ttype + 
+                return "TOKEN [" + (char)ttype + sval() + (char)ttype + 
                     "] (" + lineno + ")";
             else 
                 return "TOKEN [" + (char)ttype + "] (" + lineno + ")";